@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor generating a {@link PluginDispatcher} for every
+ * concrete {@link MaestroWorker} subclass being compiled, so
+ * {@link MaestroWorker#perform(String, Map)} calls plugin methods directly
+ * instead of looking them up with reflection. The dispatcher of
+ * {@code com.example.MyWorker} is {@code com.example.MyWorker_MaestroDispatcher}
+ * and knows the public no-arg methods declared by {@code MyWorker} and its
+ * superclasses up to {@code MaestroWorker}.
+ * <p>
+ * It also writes the GraalVM native-image reflection metadata the agent needs
+ * to instantiate the workers and their dispatchers to
+ * {@code META-INF/native-image/<dir>/reflect-config.json}, where
+ * {@code <dir>} is the {@code maestro.nativeImageDir} processor option,
+ * {@code maestro/dispatchers} by default.
+ * <p>
+ * The processor is registered as a service, so it runs whenever a plugin is
+ * compiled with this library on the classpath. Workers that are private,
+ * local, anonymous or inner (non static) classes are skipped and keep using
+ * reflection.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(DispatcherProcessor.NATIVE_IMAGE_DIR_OPTION)
+public class DispatcherProcessor extends AbstractProcessor {
+
+    /**
+     * Suffix of the generated dispatcher class names.
+     */
+    public static final String DISPATCHER_SUFFIX = "_MaestroDispatcher";
+
+    /**
+     * Processor option setting the directory under
+     * {@code META-INF/native-image} the metadata is written to.
+     */
+    public static final String NATIVE_IMAGE_DIR_OPTION = "maestro.nativeImageDir";
+
+    private static final String DEFAULT_NATIVE_IMAGE_DIR = "maestro/dispatchers";
+
+    private final List<String> reflected = new ArrayList<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+	return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+	    RoundEnvironment roundEnv) {
+	TypeElement worker = processingEnv.getElementUtils().getTypeElement(
+		MaestroWorker.class.getCanonicalName());
+	if (worker == null) {
+	    return false;
+	}
+	if (roundEnv.processingOver()) {
+	    if (!reflected.isEmpty()) {
+		writeReflectConfig();
+	    }
+	    return false;
+	}
+	for (Element element : roundEnv.getRootElements()) {
+	    processType(element, worker);
+	}
+	// don't claim the annotations, other processors may want them
+	return false;
+    }
+
+    private void processType(Element element, TypeElement worker) {
+	if (!element.getKind().isClass() && !element.getKind().isInterface()) {
+	    return;
+	}
+	TypeElement type = (TypeElement) element;
+	if (type.getModifiers().contains(Modifier.PRIVATE)) {
+	    return;
+	}
+	for (Element enclosed : type.getEnclosedElements()) {
+	    if (enclosed.getModifiers().contains(Modifier.STATIC)) {
+		processType(enclosed, worker);
+	    }
+	}
+	Types types = processingEnv.getTypeUtils();
+	if (type.getKind() == ElementKind.CLASS
+		&& !type.getModifiers().contains(Modifier.ABSTRACT)
+		&& !type.equals(worker)
+		&& types.isSubtype(types.erasure(type.asType()),
+			types.erasure(worker.asType()))) {
+	    try {
+		writeDispatcher(type, worker);
+	    } catch (IOException e) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+			"Error generating plugin dispatcher: " + e.getMessage(), type);
+	    }
+	}
+    }
+
+    /**
+     * Collects the public no-arg instance methods of the worker class and its
+     * superclasses up to, excluding, {@code MaestroWorker}. Overriding methods
+     * come first, so their {@link Memoize} annotation is the one used, as with
+     * {@link Class#getMethod(String, Class...)}.
+     */
+    private Map<String, ExecutableElement> pluginMethods(TypeElement type,
+	    TypeElement worker) {
+	Map<String, ExecutableElement> methods = new LinkedHashMap<String, ExecutableElement>();
+	TypeElement current = type;
+	while (current != null && !current.equals(worker)) {
+	    for (Element enclosed : current.getEnclosedElements()) {
+		if (enclosed.getKind() != ElementKind.METHOD) {
+		    continue;
+		}
+		ExecutableElement method = (ExecutableElement) enclosed;
+		Set<Modifier> modifiers = method.getModifiers();
+		String name = method.getSimpleName().toString();
+		if (modifiers.contains(Modifier.PUBLIC)
+			&& !modifiers.contains(Modifier.STATIC)
+			&& method.getParameters().isEmpty()
+			&& !methods.containsKey(name)) {
+		    methods.put(name, method);
+		}
+	    }
+	    TypeMirror superclass = current.getSuperclass();
+	    current = superclass.getKind() == TypeKind.DECLARED
+		    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+	}
+	return methods;
+    }
+
+    private void writeDispatcher(TypeElement type, TypeElement worker)
+	    throws IOException {
+	Elements elements = processingEnv.getElementUtils();
+	PackageElement pkg = elements.getPackageOf(type);
+	String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+	String binaryName = elements.getBinaryName(type).toString();
+	String simpleName = (packageName.isEmpty() ? binaryName
+		: binaryName.substring(packageName.length() + 1)) + DISPATCHER_SUFFIX;
+	String workerName = type.getQualifiedName().toString();
+	Map<String, ExecutableElement> methods = pluginMethods(type, worker);
+
+	StringBuilder src = new StringBuilder();
+	if (!packageName.isEmpty()) {
+	    src.append("package ").append(packageName).append(";\n\n");
+	}
+	src.append("/**\n * Plugin dispatcher for {@link ").append(workerName)
+		.append("}, generated by ").append(getClass().getName())
+		.append(". Do not edit.\n */\n");
+	src.append("@SuppressWarnings(\"rawtypes\")\n");
+	src.append("public final class ").append(simpleName)
+		.append(" implements ").append(PluginDispatcher.class.getName()).append(" {\n\n");
+
+	src.append("    public boolean hasMethod(String methodName) {\n");
+	for (String name : methods.keySet()) {
+	    src.append("        if (").append(literal(name))
+		    .append(".equals(methodName)) return true;\n");
+	}
+	src.append("        return false;\n    }\n\n");
+
+	src.append("    public String[] getMemoizedFields(String methodName) {\n");
+	for (Map.Entry<String, ExecutableElement> entry : methods.entrySet()) {
+	    Memoize memoize = entry.getValue().getAnnotation(Memoize.class);
+	    if (memoize == null) {
+		continue;
+	    }
+	    src.append("        if (").append(literal(entry.getKey()))
+		    .append(".equals(methodName)) return new String[] {");
+	    String[] fields = memoize.value();
+	    for (int i = 0; i < fields.length; i++) {
+		src.append(i > 0 ? ", " : " ").append(literal(fields[i]));
+	    }
+	    src.append(" };\n");
+	}
+	src.append("        return null;\n    }\n\n");
+
+	src.append("    public void invoke(").append(MaestroWorker.class.getName())
+		.append(" worker, String methodName)\n")
+		.append("            throws java.lang.reflect.InvocationTargetException {\n");
+	src.append("        ").append(workerName).append(" w = (")
+		.append(workerName).append(") worker;\n");
+	src.append("        try {\n");
+	for (String name : methods.keySet()) {
+	    src.append("            if (").append(literal(name))
+		    .append(".equals(methodName)) {\n                w.").append(name)
+		    .append("();\n                return;\n            }\n");
+	}
+	src.append("        } catch (Throwable t) {\n")
+		.append("            throw new java.lang.reflect.InvocationTargetException(t);\n")
+		.append("        }\n");
+	src.append("        throw new IllegalArgumentException(\"No plugin method \" + methodName + \" in ")
+		.append(workerName).append("\");\n    }\n}\n");
+
+	String dispatcherName = packageName.isEmpty() ? simpleName
+		: packageName + "." + simpleName;
+	Writer writer = processingEnv.getFiler().createSourceFile(dispatcherName, type)
+		.openWriter();
+	try {
+	    writer.write(src.toString());
+	} finally {
+	    writer.close();
+	}
+	reflected.add(binaryName);
+	reflected.add(dispatcherName);
+    }
+
+    private String literal(String value) {
+	return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    private void writeReflectConfig() {
+	String dir = processingEnv.getOptions().get(NATIVE_IMAGE_DIR_OPTION);
+	if (dir == null) {
+	    dir = DEFAULT_NATIVE_IMAGE_DIR;
+	}
+	StringBuilder json = new StringBuilder("[\n");
+	for (int i = 0; i < reflected.size(); i++) {
+	    json.append("  {\n    \"name\": ").append(literal(reflected.get(i)))
+		    .append(",\n    \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ]\n  }")
+		    .append(i < reflected.size() - 1 ? ",\n" : "\n");
+	}
+	json.append("]\n");
+	Filer filer = processingEnv.getFiler();
+	try {
+	    Writer writer = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+		    "META-INF/native-image/" + dir + "/reflect-config.json").openWriter();
+	    try {
+		writer.write(json.toString());
+	    } finally {
+		writer.close();
+	    }
+	} catch (IOException e) {
+	    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+		    "Error writing native-image metadata: " + e.getMessage());
+	}
+    }
+}
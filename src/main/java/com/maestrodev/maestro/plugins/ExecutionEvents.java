@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hooks reporting plugin execution and messaging to the JDK Flight Recorder,
+ * so slow tasks and broker stalls show up in a recording next to GC and thread
+ * activity. The JFR event types are only compiled when building on JDK 11 or
+ * later (the {@code jfr} profile); otherwise, or when running on a JVM without
+ * JFR, every hook is a no-op.
+ * <p>
+ * Each {@code begin} method returns a handle, null when the event is not being
+ * recorded, which is passed to the matching {@code commit} method.
+ */
+abstract class ExecutionEvents {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExecutionEvents.class);
+
+    private static final String JFR_EVENTS = "com.maestrodev.maestro.plugins.JfrExecutionEvents";
+
+    private static final ExecutionEvents INSTANCE = load();
+
+    /**
+     * Returns the events implementation for this JVM.
+     *
+     * @return the events implementation.
+     */
+    static ExecutionEvents get() {
+	return INSTANCE;
+    }
+
+    private static ExecutionEvents load() {
+	try {
+	    Class.forName("jdk.jfr.Event");
+	    return (ExecutionEvents) Class.forName(JFR_EVENTS).getDeclaredConstructor()
+		    .newInstance();
+	} catch (ClassNotFoundException e) {
+	    // built or running without JFR
+	} catch (Exception e) {
+	    logger.warn("Error loading JFR events, they will not be recorded", e);
+	} catch (LinkageError e) {
+	    logger.warn("Error loading JFR events, they will not be recorded", e);
+	}
+	return new ExecutionEvents() {
+	};
+    }
+
+    Object beginPerform() {
+	return null;
+    }
+
+    void commitPerform(Object event, String pluginClass, String method,
+	    String outcome) {
+    }
+
+    Object beginConnect() {
+	return null;
+    }
+
+    void commitConnect(Object event, String uri, boolean reused) {
+    }
+
+    Object beginEncode() {
+	return null;
+    }
+
+    void commitEncode(Object event, int bytes) {
+    }
+
+    Object beginSend() {
+	return null;
+    }
+
+    void commitSend(Object event, String destination, int bytes) {
+    }
+}
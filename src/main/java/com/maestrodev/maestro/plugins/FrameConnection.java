@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.IOException;
+
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * The part of a stomp connection the send path uses, so connections kept by
+ * the {@link StompConnectionFactory} can be backed by the network client or
+ * by a {@link MemoryBroker}.
+ */
+interface FrameConnection {
+
+    /**
+     * Sends a frame.
+     *
+     * @param frame the frame.
+     * @throws IOException if the frame could not be sent.
+     */
+    void send(StompFrame frame) throws IOException;
+
+    /**
+     * Returns the CONNECTED frame received from the server.
+     *
+     * @return the frame, null if unknown.
+     */
+    StompFrame connectedFrame();
+
+    /**
+     * Returns a counter that grows whenever something is received from the
+     * server, a frame or a heart-beat, so a quiet but live connection can be
+     * told from one whose socket went away.
+     *
+     * @return the amount received so far, in any unit.
+     */
+    long getReceivedCount();
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException if the connection could not be closed cleanly.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.DESTINATION;
+import static org.fusesource.stomp.client.Constants.SEND;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * Appends the frames sent to the broker to a local file, so production-shaped
+ * traffic can be pushed again to a broker with {@link FrameReplay} to load
+ * test the server without running plugins.
+ * <p>
+ * Recording is enabled by setting the {@code record_file} stomp configuration
+ * or the {@code maestro.record.file} system property to the file to append
+ * to. Workers recording to the same file share a recorder.
+ * <p>
+ * The file starts with the {@code MFR1} magic number, followed by one binary
+ * record per frame: the time it was sent in milliseconds, the destination,
+ * the number of other headers and each header name and value, the body
+ * length and the body.
+ */
+public class FrameRecorder implements Closeable {
+
+    /**
+     * System property setting the file every worker records to.
+     */
+    public static final String RECORD_FILE_PROPERTY = "maestro.record.file";
+
+    static final int MAGIC = 0x4D465231;
+
+    private static final ConcurrentMap<String, FrameRecorder> recorders =
+	    new ConcurrentHashMap<String, FrameRecorder>();
+
+    private final File file;
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long count;
+
+    /**
+     * Creates a recorder appending to the specified file.
+     *
+     * @param file the file.
+     * @throws IOException if the file could not be opened.
+     */
+    public FrameRecorder(File file) throws IOException {
+	this.file = file;
+	boolean empty = !file.exists() || file.length() == 0;
+	this.out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(file, true)));
+	if (empty) {
+	    out.writeInt(MAGIC);
+	    out.flush();
+	}
+    }
+
+    /**
+     * Returns the recorder shared by every worker recording to the specified
+     * file, opening it the first time.
+     *
+     * @param path the file path.
+     * @return the recorder.
+     * @throws IOException if the file could not be opened.
+     */
+    static FrameRecorder get(String path) throws IOException {
+	FrameRecorder recorder = recorders.get(path);
+	if (recorder == null) {
+	    recorder = new FrameRecorder(new File(path));
+	    FrameRecorder existing = recorders.putIfAbsent(path, recorder);
+	    if (existing != null) {
+		recorder.close();
+		recorder = existing;
+	    }
+	}
+	return recorder;
+    }
+
+    /**
+     * Appends a frame to the recording, timestamped now. Each frame is flushed
+     * so a recording is usable even if the agent is killed.
+     *
+     * @param frame the frame sent.
+     * @throws IOException if the frame could not be written.
+     */
+    public void record(StompFrame frame) throws IOException {
+	record(System.currentTimeMillis(), frame);
+    }
+
+    /**
+     * Appends a frame to the recording.
+     *
+     * @param timestamp the time the frame was sent, in milliseconds.
+     * @param frame the frame sent.
+     * @throws IOException if the frame could not be written.
+     */
+    public void record(long timestamp, StompFrame frame) throws IOException {
+	List<Map.Entry<AsciiBuffer, AsciiBuffer>> headers =
+		new ArrayList<Map.Entry<AsciiBuffer, AsciiBuffer>>();
+	AsciiBuffer destination = null;
+	for (Map.Entry<AsciiBuffer, AsciiBuffer> header : frame.headerMap().entrySet()) {
+	    if (destination == null && DESTINATION.equals(header.getKey())) {
+		destination = header.getValue();
+	    } else {
+		headers.add(header);
+	    }
+	}
+	Buffer content = frame.content();
+	lock.lock();
+	try {
+	    out.writeLong(timestamp);
+	    out.writeUTF(destination == null ? "" : destination.toString());
+	    out.writeShort(headers.size());
+	    for (Map.Entry<AsciiBuffer, AsciiBuffer> header : headers) {
+		out.writeUTF(header.getKey().toString());
+		out.writeUTF(header.getValue().toString());
+	    }
+	    if (content == null) {
+		out.writeInt(0);
+	    } else {
+		out.writeInt(content.length());
+		out.write(content.data, content.offset, content.length);
+	    }
+	    out.flush();
+	    count++;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the number of frames recorded by this recorder.
+     *
+     * @return the number of frames.
+     */
+    public long getCount() {
+	lock.lock();
+	try {
+	    return count;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the file frames are appended to.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close() throws IOException {
+	lock.lock();
+	try {
+	    recorders.remove(file.getPath(), this);
+	    out.close();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * A frame read back from a recording.
+     */
+    public static class RecordedFrame {
+	private final long timestamp;
+	private final StompFrame frame;
+
+	RecordedFrame(long timestamp, StompFrame frame) {
+	    this.timestamp = timestamp;
+	    this.frame = frame;
+	}
+
+	/**
+	 * Returns the time the frame was sent.
+	 *
+	 * @return the time in milliseconds.
+	 */
+	public long getTimestamp() {
+	    return timestamp;
+	}
+
+	/**
+	 * Returns the frame.
+	 *
+	 * @return the frame, ready to be sent again.
+	 */
+	public StompFrame getFrame() {
+	    return frame;
+	}
+    }
+
+    /**
+     * Reads the frames of a recording in the order they were sent.
+     */
+    public static class Reader implements Closeable {
+	private final DataInputStream in;
+
+	/**
+	 * Opens a recording.
+	 *
+	 * @param file the recording.
+	 * @throws IOException if the file could not be opened or is not a
+	 *                     recording.
+	 */
+	public Reader(File file) throws IOException {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	    if (in.readInt() != MAGIC) {
+		in.close();
+		throw new IOException(file + " is not a frame recording");
+	    }
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @return the frame, null at the end of the recording.
+	 * @throws IOException if the recording could not be read.
+	 */
+	public RecordedFrame next() throws IOException {
+	    long timestamp;
+	    try {
+		timestamp = in.readLong();
+	    } catch (EOFException e) {
+		return null;
+	    }
+	    StompFrame frame = new StompFrame(SEND);
+	    frame.addHeader(DESTINATION, new AsciiBuffer(in.readUTF()));
+	    int headers = in.readUnsignedShort();
+	    for (int i = 0; i < headers; i++) {
+		frame.addHeader(new AsciiBuffer(in.readUTF()), new AsciiBuffer(in.readUTF()));
+	    }
+	    byte[] content = new byte[in.readInt()];
+	    in.readFully(content);
+	    frame.content(new Buffer(content));
+	    return new RecordedFrame(timestamp, frame);
+	}
+
+	public void close() throws IOException {
+	    in.close();
+	}
+    }
+}
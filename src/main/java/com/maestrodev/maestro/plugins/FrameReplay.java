@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * Pushes recordings made by a {@link FrameRecorder} back to a broker, to load
+ * test the Maestro server with production-shaped traffic. Each recording is
+ * replayed on its own connection and thread, all of them starting together,
+ * so several recordings mix like concurrent tasks would.
+ * <p>
+ * Frames are sent with the same spacing they were recorded with, divided by
+ * the speed; a speed of {@code max} sends them as fast as the broker takes
+ * them.
+ *
+ * <pre>
+ * java com.maestrodev.maestro.plugins.FrameReplay stomp://localhost:61613 2 build1.rec build2.rec
+ * </pre>
+ */
+public class FrameReplay {
+
+    private final double speed;
+
+    /**
+     * Creates a replay.
+     *
+     * @param speed how many times faster than recorded frames are sent; 0 or
+     *              less sends them as fast as possible.
+     */
+    public FrameReplay(double speed) {
+	this.speed = speed;
+    }
+
+    public static void main(String[] args) throws Exception {
+	if (args.length < 3) {
+	    System.err.println("Usage: FrameReplay <stomp uri> <speed|max> <recording>...");
+	    System.exit(1);
+	}
+	final String uri = args[0];
+	double speed = "max".equalsIgnoreCase(args[1]) ? 0 : Double.parseDouble(args[1]);
+	List<File> recordings = new ArrayList<File>();
+	for (int i = 2; i < args.length; i++) {
+	    recordings.add(new File(args[i]));
+	}
+
+	FrameReplay replay = new FrameReplay(speed);
+	long begin = System.nanoTime();
+	long frames = replay.replay(recordings, new SenderFactory() {
+	    public Sender open() throws Exception {
+		final BlockingConnection connection = StompConnectionFactory
+			.getInstance().getConnection(uri);
+		return new Sender() {
+		    public void send(StompFrame frame) throws Exception {
+			connection.send(frame);
+		    }
+
+		    public void close() throws Exception {
+			connection.close();
+		    }
+		};
+	    }
+	});
+	double seconds = (System.nanoTime() - begin) / 1e9;
+	System.out.println(format("Replayed %d frames from %d recordings in %.2fs, %.1f frames/s",
+		frames, recordings.size(), seconds, frames / seconds));
+    }
+
+    /**
+     * Sends the frames of one recording.
+     */
+    interface Sender extends OutboundQueue.Sender {
+	void close() throws Exception;
+    }
+
+    /**
+     * Opens a sender for each recording.
+     */
+    interface SenderFactory {
+	Sender open() throws Exception;
+    }
+
+    /**
+     * Replays the recordings in parallel and waits for all of them to finish.
+     *
+     * @param recordings the recordings.
+     * @param senders opens the sender of each recording.
+     * @return the number of frames sent.
+     * @throws Exception if a recording could not be read or sent.
+     */
+    long replay(List<File> recordings, final SenderFactory senders)
+	    throws Exception {
+	ExecutorService executor = TaskThreads.newTaskExecutor("maestro-replay");
+	try {
+	    final long start = System.currentTimeMillis();
+	    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+	    for (final File recording : recordings) {
+		futures.add(executor.submit(new Callable<Long>() {
+		    public Long call() throws Exception {
+			Sender sender = senders.open();
+			try {
+			    return replay(recording, sender, start);
+			} finally {
+			    sender.close();
+			}
+		    }
+		}));
+	    }
+	    long frames = 0;
+	    for (Future<Long> future : futures) {
+		try {
+		    frames += future.get();
+		} catch (ExecutionException e) {
+		    if (e.getCause() instanceof Exception) {
+			throw (Exception) e.getCause();
+		    }
+		    throw e;
+		}
+	    }
+	    return frames;
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    /**
+     * Replays a recording, sending its first frame at the specified time.
+     *
+     * @param recording the recording.
+     * @param sender the sender.
+     * @param start the time to send the first frame at, in milliseconds.
+     * @return the number of frames sent.
+     * @throws Exception if the recording could not be read or sent.
+     */
+    long replay(File recording, OutboundQueue.Sender sender, long start)
+	    throws Exception {
+	FrameRecorder.Reader reader = new FrameRecorder.Reader(recording);
+	try {
+	    long frames = 0;
+	    long first = -1;
+	    FrameRecorder.RecordedFrame recorded;
+	    while ((recorded = reader.next()) != null) {
+		if (first < 0) {
+		    first = recorded.getTimestamp();
+		}
+		if (speed > 0) {
+		    long due = start + (long) ((recorded.getTimestamp() - first) / speed);
+		    long wait = due - System.currentTimeMillis();
+		    if (wait > 0) {
+			Thread.sleep(wait);
+		    }
+		}
+		sender.send(recorded.getFrame());
+		frames++;
+	    }
+	    return frames;
+	} catch (IOException e) {
+	    throw new IOException("Error replaying " + recording + ": " + e.getMessage(), e);
+	} finally {
+	    reader.close();
+	}
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * A long-lived stomp connection kept open across sends by the
+ * {@link StompConnectionFactory}. Tracks the heart-beat interval negotiated
+ * with the server, when something was last received from it and the send
+ * currently in flight, so a connection whose socket went away without being
+ * closed (NAT timeout, broker failover) can be marked dead instead of being
+ * reused, or blocking the sending thread forever.
+ */
+class HeartBeatConnection {
+
+    /**
+     * The STOMP 1.1 header negotiating heart-beats, not defined by the stomp
+     * client.
+     */
+    static final AsciiBuffer HEART_BEAT = new AsciiBuffer("heart-beat");
+
+    private final String uri;
+    private final FrameConnection connection;
+    private final long interval;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    /** Guards sender and senderInterrupted. */
+    private final ReentrantLock senderLock = new ReentrantLock();
+
+    private volatile boolean dead;
+    private volatile long sendStarted;
+    private Thread sender;
+    private boolean senderInterrupted;
+    private long receivedCount;
+    private long lastReceived;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param uri the uri the connection was opened to.
+     * @param connection the underlying stomp connection.
+     * @param heartBeat the heart-beat interval requested from the server, in
+     *                  milliseconds, 0 if heart-beating is disabled.
+     */
+    HeartBeatConnection(String uri, FrameConnection connection,
+	    long heartBeat) {
+	this.uri = uri;
+	this.connection = connection;
+	this.interval = negotiate(connection.connectedFrame(), heartBeat);
+	this.receivedCount = connection.getReceivedCount();
+	this.lastReceived = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the interval the server agreed to send heart-beats at, following
+     * the STOMP 1.1 rules: the larger of what we asked for and what the server
+     * can do, or 0 if either side does not want heart-beats.
+     *
+     * @param connected the CONNECTED frame, may be null.
+     * @param heartBeat the interval we asked for.
+     * @return the negotiated interval in milliseconds.
+     */
+    static long negotiate(StompFrame connected, long heartBeat) {
+	if (connected == null || heartBeat <= 0) {
+	    return 0;
+	}
+	AsciiBuffer header = connected.getHeader(HEART_BEAT);
+	if (header == null) {
+	    // STOMP 1.0 server
+	    return 0;
+	}
+	String[] values = header.toString().split(",");
+	long server;
+	try {
+	    server = Long.parseLong(values[0].trim());
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+	return server <= 0 ? 0 : Math.max(server, heartBeat);
+    }
+
+    /**
+     * Sends a frame, failing with an IOException if the connection was marked
+     * dead before or while sending. Sends are serialized with a lock rather
+     * than a monitor, so a virtual thread blocked on the socket or waiting
+     * for its turn doesn't pin its carrier thread.
+     *
+     * @param frame the frame to send.
+     * @throws IOException if the frame could not be sent.
+     */
+    void send(StompFrame frame) throws IOException {
+	sendLock.lock();
+	try {
+	    if (dead) {
+		throw new IOException("Stomp connection to " + uri + " is dead");
+	    }
+	    senderLock.lock();
+	    try {
+		sender = Thread.currentThread();
+		senderInterrupted = false;
+	    } finally {
+		senderLock.unlock();
+	    }
+	    sendStarted = System.currentTimeMillis();
+	    try {
+		connection.send(frame);
+	    } catch (IOException e) {
+		dead = true;
+		throw e;
+	    } finally {
+		sendStarted = 0;
+		boolean interrupted;
+		senderLock.lock();
+		try {
+		    sender = null;
+		    interrupted = senderInterrupted;
+		} finally {
+		    senderLock.unlock();
+		}
+		if (interrupted) {
+		    // our interrupt must not reach the caller's code after the send
+		    Thread.interrupted();
+		    throw new InterruptedIOException("Stomp connection to " + uri
+			    + " missed its heart-beats");
+		}
+	    }
+	} finally {
+	    sendLock.unlock();
+	}
+    }
+
+    /**
+     * Checks whether nothing, not even a heart-beat, has been received from
+     * the server for longer than the heart-beat window, or a send has been
+     * blocked for that long. If so, marks the connection dead and interrupts
+     * the sender, if it is still sending. Called periodically by a single
+     * checker thread.
+     *
+     * @param now the current time in milliseconds.
+     * @param grace how many intervals to wait before giving up.
+     * @return true if the connection is dead.
+     */
+    boolean checkHeartBeat(long now, int grace) {
+	if (dead || interval <= 0) {
+	    return dead;
+	}
+	long received = connection.getReceivedCount();
+	if (received != receivedCount) {
+	    receivedCount = received;
+	    lastReceived = now;
+	}
+	long window = interval * grace;
+	long started = sendStarted;
+	if (now - lastReceived > window || (started > 0 && now - started > window)) {
+	    dead = true;
+	    // only while the send is in flight, see send
+	    senderLock.lock();
+	    try {
+		if (sender != null) {
+		    senderInterrupted = true;
+		    sender.interrupt();
+		}
+	    } finally {
+		senderLock.unlock();
+	    }
+	}
+	return dead;
+    }
+
+    /**
+     * Closes the underlying connection, ignoring errors.
+     */
+    void close() {
+	dead = true;
+	try {
+	    connection.close();
+	} catch (IOException e) {
+	    // ignore
+	}
+    }
+
+    boolean isDead() {
+	return dead;
+    }
+
+    String getUri() {
+	return uri;
+    }
+
+    long getInterval() {
+	return interval;
+    }
+
+    FrameConnection getConnection() {
+	return connection;
+    }
+}
@@ -5,27 +5,53 @@ package com.maestrodev.maestro.plugins;
 
 import static java.lang.String.format;
 import static org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace;
+import static org.fusesource.stomp.client.Constants.CONTENT_LENGTH;
+import static org.fusesource.stomp.client.Constants.CONTENT_TYPE;
 import static org.fusesource.stomp.client.Constants.DESTINATION;
 import static org.fusesource.stomp.client.Constants.SEND;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang3.StringUtils;
+import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
-import org.fusesource.stomp.client.BlockingConnection;
 import org.fusesource.stomp.codec.StompFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.jr.ob.JSON;
+import com.maestrodev.maestro.plugins.OutboundQueue.Lane;
 
 /**
  * Helper Class for Maestro Plugins written in Java. The lifecycle of the plugin
@@ -36,6 +62,8 @@ import com.fasterxml.jackson.jr.ob.JSON;
 public class MaestroWorker {
     
     private static final Logger logger = LoggerFactory.getLogger(MaestroWorker.class);
+
+    private static final ExecutionEvents events = ExecutionEvents.get();
     
     private static final String CREATE_META = "__create__";
     private static final String DELETE_META = "__delete__";
@@ -55,10 +83,84 @@ public class MaestroWorker {
     private static final String NOT_NEEDED_META = "__not_needed__";
     private static final String LINKS_META = "__links__";
     private static final String CONTEXT_OUTPUTS = "__context_outputs__";
+    private static final String ATTACHMENT_META = "__attachment__";
+    private static final String REMOVED_FIELDS = "__removed__";
+
+    private static final AsciiBuffer TRANSFER_ID_HEADER = new AsciiBuffer("maestro-transfer-id");
+    private static final AsciiBuffer SEQUENCE_HEADER = new AsciiBuffer("maestro-sequence");
+    private static final AsciiBuffer MESSAGE_SEQUENCE_HEADER = new AsciiBuffer("maestro-message-sequence");
+
+    /**
+     * Maximum size of the content of each attachment frame.
+     */
+    public static final int ATTACHMENT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The classes of messages sent to the server. Each class is sent to the
+     * destination set by its stomp configuration key, or to {@code queue} if
+     * that key is not set, so the server can consume each one with its own
+     * consumers. Every work item message carries a
+     * {@code maestro-message-sequence} header, increasing in the order the
+     * messages were created, which the server can sort by to restore the order
+     * across destinations.
+     */
+    enum MessageClass {
+	/** Console output and attachments. */
+	OUTPUT("output_queue"),
+	/** Cancel, not needed and waiting state. */
+	CONTROL("control_queue"),
+	/** Record creation, updates and deletion. */
+	PERSIST("persist_queue");
+
+	private final String configKey;
+
+	MessageClass(String configKey) {
+	    this.configKey = configKey;
+	}
+
+	String getConfigKey() {
+	    return configKey;
+	}
+    }
+
+    /**
+     * The generated dispatcher of each worker class, or {@link #NO_DISPATCHER}
+     * if it was compiled without the {@link DispatcherProcessor}. Kept with
+     * the class rather than in a map, so redeployed plugins and their class
+     * loaders can still be unloaded.
+     */
+    private static final ClassValue<PluginDispatcher> dispatchers =
+	    new ClassValue<PluginDispatcher>() {
+		@Override
+		protected PluginDispatcher computeValue(Class<?> clazz) {
+		    return loadDispatcher(clazz);
+		}
+	    };
+    private static final PluginDispatcher NO_DISPATCHER = new PluginDispatcher() {
+	public boolean hasMethod(String methodName) {
+	    return false;
+	}
+
+	public String[] getMemoizedFields(String methodName) {
+	    return null;
+	}
+
+	public void invoke(MaestroWorker worker, String methodName) {
+	    throw new IllegalArgumentException("No plugin method " + methodName);
+	}
+    };
 
     private Map<String, Object> workitem;
     private Map<String, Object> stompConfig = new HashMap<String, Object>();
     private StompConnectionFactory stompConnectionFactory;
+    private TaskTrace trace;
+    private OutboundQueue outboundQueue;
+    private final Lock outboundLock = new ReentrantLock();
+    private final Lock workitemLock = new ReentrantLock();
+    private final AtomicLong messageSequence = new AtomicLong();
+    private volatile OutputCompactor outputCompactor;
+    private ResultCache resultCache = ResultCache.getInstance();
+    private final Map<String, Method> methods = new ConcurrentHashMap<String, Method>();
 
     /**
      * Creates a new instance with the default StompConnectionFactory.
@@ -84,7 +186,7 @@ public class MaestroWorker {
 	try {
 	    String[] fields = { NOT_NEEDED_META };
 	    String[] values = { String.valueOf(true) };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.CONTROL, Lane.CONTROL);
 	} catch (Exception e) {
 	    logger.error("Error sending cancel message", e);
 	}
@@ -98,7 +200,7 @@ public class MaestroWorker {
 	try {
 	    String[] fields = { CANCEL_META };
 	    String[] values = { String.valueOf(true) };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.CONTROL, Lane.CONTROL);
 	} catch (Exception e) {
 	    logger.error("Error sending cancel message", e);
 	}
@@ -113,34 +215,275 @@ public class MaestroWorker {
 	try {
 	    String[] fields = { WAITING_META };
 	    String[] values = { String.valueOf(waiting) };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.CONTROL, Lane.BARRIER);
 	} catch (Exception e) {
 	    logger.error("Error setting waiting to " + waiting, e);
 	}
     }
 
     /**
-     * Sends the specified output strings to the server for persistence.
+     * Sends the specified output strings to the server for persistence. If an
+     * {@link OutputCompactor} is set, progress redraws and repeated lines are
+     * compacted first. Can be called from several threads, such as
+     * {@link #runSubSteps(Map) sub-steps}.
      * 
      * @param output the message to be persisted.
      */
     public void writeOutput(String output) {
+	OutputCompactor compactor = this.outputCompactor;
+	if (compactor != null) {
+	    workitemLock.lock();
+	    try {
+		output = compactor.process(output, System.currentTimeMillis());
+	    } finally {
+		workitemLock.unlock();
+	    }
+	    if (output.length() == 0) {
+		return;
+	    }
+	}
+	sendOutput(output);
+    }
+
+    /**
+     * Sends output held back by the {@link OutputCompactor}, if any.
+     */
+    private void flushCompactedOutput() {
+	OutputCompactor compactor = this.outputCompactor;
+	if (compactor != null) {
+	    String output;
+	    workitemLock.lock();
+	    try {
+		output = compactor.flush();
+	    } finally {
+		workitemLock.unlock();
+	    }
+	    if (output.length() > 0) {
+		sendOutput(output);
+	    }
+	}
+    }
+
+    /**
+     * Sends the progress line held back by the {@link OutputCompactor}, if
+     * the plugin has not written anything for an interval.
+     */
+    private void pollCompactedOutput() {
+	OutputCompactor compactor = this.outputCompactor;
+	if (compactor != null) {
+	    String output;
+	    workitemLock.lock();
+	    try {
+		output = compactor.poll(System.currentTimeMillis());
+	    } finally {
+		workitemLock.unlock();
+	    }
+	    if (output.length() > 0) {
+		sendOutput(output);
+	    }
+	}
+    }
+
+    /**
+     * Starts polling the {@link OutputCompactor} for held back progress once
+     * per interval.
+     * 
+     * @return the poll, null if no compactor is set.
+     */
+    private OutputPoll startOutputPoll() {
+	OutputCompactor compactor = this.outputCompactor;
+	if (compactor == null) {
+	    return null;
+	}
+	OutputPoll poll = new OutputPoll(this);
+	long interval = Math.max(compactor.getInterval(), 10);
+	poll.future = OutputPoll.SCHEDULER.scheduleWithFixedDelay(poll, interval,
+		interval, TimeUnit.MILLISECONDS);
+	return poll;
+    }
+
+    /**
+     * Periodic {@link #pollCompactedOutput()} of a task run. Once stopped it
+     * is neither running nor will run again, so nothing it sends can arrive
+     * after the output flushed at the end of the task. The scheduler thread
+     * is only started by the first worker with a compactor.
+     */
+    private static class OutputPoll implements Runnable {
+	static final ScheduledExecutorService SCHEDULER =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "maestro-output-poll");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+
+	private final MaestroWorker worker;
+	private final ReentrantLock lock = new ReentrantLock();
+	private boolean stopped;
+	ScheduledFuture<?> future;
+
+	OutputPoll(MaestroWorker worker) {
+	    this.worker = worker;
+	}
+
+	public void run() {
+	    lock.lock();
+	    try {
+		if (!stopped) {
+		    worker.pollCompactedOutput();
+		}
+	    } catch (RuntimeException e) {
+		logger.error("Error sending held back output", e);
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	void stop() {
+	    lock.lock();
+	    try {
+		stopped = true;
+		future.cancel(false);
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+
+    /**
+     * Sends output to the server.
+     * 
+     * @param output the output.
+     */
+    private void sendOutput(String output) {
 	try {
 	    String[] fields = { OUTPUT_META, STREAMING_META };
 	    String[] values = { output, String.valueOf(true) };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.OUTPUT, Lane.ORDERED);
 	} catch (Exception e) {
 	    logger.error("Error writing output: " + output, e);
 	}
     }
 
     /**
-     * Sends the specified field/value pairs.
+     * Sends a file to the server as an attachment of the current task. The
+     * content is streamed from the file in binary frames of at most
+     * {@link #ATTACHMENT_CHUNK_SIZE} bytes, each carrying a
+     * {@code content-length}, the transfer id and its sequence number, so
+     * memory use doesn't depend on the file size and nothing is base64
+     * encoded. Once all the chunks are sent, a work item message with an
+     * {@code __attachment__} field describing the transfer (name, id, length,
+     * number of chunks and SHA-256 checksum) completes it.
+     * 
+     * @param file the file to attach.
+     * @param name the attachment name shown in Maestro.
+     * @return the transfer id.
+     * @throws IOException if the file could not be read or sent.
+     */
+    public String attachFile(Path file, String name) throws IOException {
+	if (this.workitem == null) {
+	    throw new IllegalStateException("Workitem has not been set yet");
+	}
+	Object queue = getDestination(MessageClass.OUTPUT);
+	if (queue == null) {
+	    throw new IllegalStateException("Missing Stomp Configuration. Make Sure Queue is Set");
+	}
+	// chunks are sent directly, anything queued before must go first
+	flushOutput();
+
+	String transferId = UUID.randomUUID().toString();
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+
+	long length = 0;
+	int sequence = 0;
+	FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+	try {
+	    ByteBuffer chunk = ByteBuffer.allocate(ATTACHMENT_CHUNK_SIZE);
+	    boolean eof = false;
+	    while (!eof) {
+		// fill the chunk before sending it
+		while (chunk.hasRemaining()) {
+		    if (channel.read(chunk) < 0) {
+			eof = true;
+			break;
+		    }
+		}
+		if (chunk.position() == 0) {
+		    break;
+		}
+		chunk.flip();
+		byte[] content = new byte[chunk.remaining()];
+		chunk.get(content);
+		chunk.clear();
+		digest.update(content);
+		length += content.length;
+
+		StompFrame frame = new StompFrame(SEND);
+		frame.addHeader(DESTINATION, StompFrame.encodeHeader(queue.toString()));
+		frame.addHeader(CONTENT_LENGTH, StompFrame.encodeHeader(String.valueOf(content.length)));
+		frame.addHeader(CONTENT_TYPE, StompFrame.encodeHeader("application/octet-stream"));
+		frame.addHeader(TRANSFER_ID_HEADER, StompFrame.encodeHeader(transferId));
+		frame.addHeader(SEQUENCE_HEADER, StompFrame.encodeHeader(String.valueOf(sequence++)));
+		frame.content(new Buffer(content));
+		deliver(frame);
+	    }
+	} catch (URISyntaxException e) {
+	    throw new IOException("Error connecting to Stomp server: " + e.getMessage());
+	} finally {
+	    channel.close();
+	}
+
+	Map<String, Object> attachment = new LinkedHashMap<String, Object>();
+	attachment.put("name", name);
+	attachment.put("transfer_id", transferId);
+	attachment.put("length", length);
+	attachment.put("chunks", sequence);
+	StringBuilder checksum = new StringBuilder("sha-256:");
+	for (byte b : digest.digest()) {
+	    checksum.append(format("%02x", b));
+	}
+	attachment.put("checksum", checksum.toString());
+	StompFrame frame;
+	workitemLock.lock();
+	try {
+	    this.workitem.put(ATTACHMENT_META, attachment);
+	    frame = this.createFrame(MessageClass.OUTPUT);
+	} finally {
+	    this.workitem.remove(ATTACHMENT_META);
+	    workitemLock.unlock();
+	}
+	frame.addHeader(TRANSFER_ID_HEADER, StompFrame.encodeHeader(transferId));
+	try {
+	    send(frame);
+	} catch (URISyntaxException e) {
+	    throw new IOException("Error connecting to Stomp server: " + e.getMessage());
+	}
+	return transferId;
+    }
+
+    /**
+     * Sends the specified field/value pairs. If output buffering is enabled
+     * the message is queued and sent in the background through the specified
+     * lane of the {@link OutboundQueue}. The work item is locked while the
+     * fields are set and the message encoded, but not while it is sent, so
+     * threads writing output concurrently don't wait for each other's sends.
      * 
      * @param fields the fields.
      * @param values the values.
+     * @param messageClass the class of the message, which selects its
+     *                     destination.
+     * @param lane the lane of the outbound queue: control for messages that
+     *             must not wait behind buffered output, barrier for the ones
+     *             that must follow the output written before them.
      */
-    private void sendFieldsWithValues(String[] fields, String[] values) {
+    private void sendFieldsWithValues(String[] fields, String[] values,
+	    MessageClass messageClass, Lane lane) {
 	if (fields.length != values.length) {
 	    throw new IllegalArgumentException(
 		    "Mismatched Field and Value Sets fields.length != values.length");
@@ -149,64 +492,258 @@ public class MaestroWorker {
 	    throw new IllegalStateException("Workitem has not been set yet");
 	}
 
-	for (int i = 0; i < fields.length; i++) {
-	    this.workitem.put(fields[i], values[i]);
+	StompFrame frame;
+	workitemLock.lock();
+	try {
+	    for (int i = 0; i < fields.length; i++) {
+		this.workitem.put(fields[i], values[i]);
+	    }
+	    frame = this.createFrame(messageClass);
+	} catch (IOException e) {
+	    throw new RuntimeException("Error encoding message", e);
+	} finally {
+	    TaskTrace trace = this.trace;
+	    long start = trace != null ? System.nanoTime() : 0;
+	    cleanup(fields);
+	    if (trace != null) {
+		trace.record("cleanup", start);
+	    }
+	    workitemLock.unlock();
+	}
+	if (frame == null) {
+	    return;
 	}
-
-	BlockingConnection connection = null;
 
 	try {
-	    connection = this.getConnection();
-	    this.sendCurrentWorkitem(connection);
+	    OutboundQueue queue = this.getOutboundQueue();
+	    if (queue == null) {
+		this.send(frame);
+	    } else {
+		queue.offer(frame, lane);
+	    }
 	} catch (IOException e) {
 	    throw new RuntimeException("Error connecting to Stomp server", e);
 	} catch (URISyntaxException e) {
 	    throw new RuntimeException("Error connecting to Stomp server", e);
-	} finally {
-	    closeConnectionAndCleanup(connection, fields);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Interrupted queueing message", e);
 	}
     }
 
     /**
-     * Sends the current work item data to the server.
+     * Returns the destination messages of the specified class are sent to:
+     * the one set by the class configuration key, or else {@code queue}.
+     * 
+     * @param messageClass the message class.
+     * @return the destination, null if neither is configured.
+     */
+    private Object getDestination(MessageClass messageClass) {
+	Object queue = this.stompConfig.get(messageClass.getConfigKey());
+	return queue != null ? queue : this.stompConfig.get("queue");
+    }
+
+    /**
+     * Encodes the current work item data into a frame, numbered with the next
+     * message sequence.
      * 
-     * @param connection
-     * @throws IOException
+     * @param messageClass the class of the message, which selects its
+     *                     destination.
+     * @return the frame, null if the queue is not configured.
+     * @throws IOException if the work item could not be encoded.
      */
-    private void sendCurrentWorkitem(BlockingConnection connection)
-	    throws IOException {
+    private StompFrame createFrame(MessageClass messageClass) throws IOException {
 
-	Object queue = this.stompConfig.get("queue");
+	Object queue = getDestination(messageClass);
 	if (queue == null) {
 	    logger.error("Missing Stomp Configuration. Make Sure Queue is Set");
-	    return;
+	    return null;
 	}
 
+	TaskTrace trace = this.trace;
+	long start = trace != null ? System.nanoTime() : 0;
+	Object event = events.beginEncode();
 	StompFrame frame = new StompFrame(SEND);
 	frame.addHeader(DESTINATION, StompFrame.encodeHeader(queue.toString()));
+	frame.addHeader(MESSAGE_SEQUENCE_HEADER,
+		StompFrame.encodeHeader(String.valueOf(messageSequence.getAndIncrement())));
 	String json = JSON.std.asString(this.workitem);
 	Buffer buffer = new Buffer(json.getBytes());
 	frame.content(buffer);
+	events.commitEncode(event, buffer.length());
+	if (trace != null) {
+	    trace.record("encode", start);
+	}
+	return frame;
+    }
 
-	connection.send(frame);
+    /**
+     * Sends a frame to the server and pauses to let the server process it.
+     * 
+     * @param frame the frame.
+     * @throws IOException if the frame could not be sent.
+     * @throws URISyntaxException if the stomp configuration is invalid.
+     */
+    private void send(StompFrame frame) throws IOException, URISyntaxException {
+	deliver(frame);
 
+	TaskTrace trace = this.trace;
+	long start = trace != null ? System.nanoTime() : 0;
 	try {
 	    Thread.sleep(500);
 	} catch (InterruptedException ex) {
 	    logger.error("Sleep interrupted", ex);
 	}
+	if (trace != null) {
+	    trace.record("sleep", start);
+	}
+    }
+
+    /**
+     * Sends a frame to the server. If the kept-alive connection turns out to
+     * be dead it is replaced and the send retried once.
+     * 
+     * @param frame the frame.
+     * @throws IOException if the frame could not be sent.
+     * @throws URISyntaxException if the stomp configuration is invalid.
+     */
+    private void deliver(StompFrame frame) throws IOException, URISyntaxException {
+
+	TaskTrace trace = this.trace;
+	long start = trace != null ? System.nanoTime() : 0;
+	HeartBeatConnection connection = this.getConnection();
+	if (trace != null) {
+	    trace.record("getConnection", start);
+	    start = System.nanoTime();
+	}
+	Object event = events.beginSend();
+	try {
+	    connection.send(frame);
+	} catch (IOException e) {
+	    logger.warn("Stomp connection to " + connection.getUri()
+		    + " failed, reconnecting", e);
+	    stompConnectionFactory.discard(connection);
+	    connection = this.getConnection();
+	    connection.send(frame);
+	}
+	if (event != null) {
+	    events.commitSend(event, frame.getHeader(DESTINATION).toString(),
+		    frame.content().length());
+	}
+	if (trace != null) {
+	    trace.record("send", start);
+	}
+	record(frame);
+    }
 
+    /**
+     * Appends a sent frame to the {@link FrameRecorder} file set by the
+     * {@code record_file} stomp configuration or the
+     * {@code maestro.record.file} system property, if any. Recording errors
+     * are logged, they don't fail the task.
+     * 
+     * @param frame the frame sent.
+     */
+    private void record(StompFrame frame) {
+	Object file = stompConfig.get("record_file");
+	if (file == null) {
+	    file = System.getProperty(FrameRecorder.RECORD_FILE_PROPERTY);
+	    if (file == null) {
+		return;
+	    }
+	}
+	try {
+	    FrameRecorder.get(file.toString()).record(frame);
+	} catch (IOException e) {
+	    logger.error("Error recording frame to " + file, e);
+	}
     }
 
     /**
-     * Gets a new stomp connection.
+     * Returns the queue messages are sent through when the
+     * {@code buffer_output} stomp configuration is true, starting it if
+     * needed.
+     * 
+     * @return the outbound queue, null if output is not buffered.
+     */
+    private OutboundQueue getOutboundQueue() {
+	Object buffered = stompConfig.get("buffer_output");
+	if (buffered == null || !Boolean.parseBoolean(buffered.toString())) {
+	    return null;
+	}
+	outboundLock.lock();
+	try {
+	    if (outboundQueue == null) {
+		outboundQueue = new OutboundQueue("maestro-outbound-"
+			+ getClass().getSimpleName(), new OutboundQueue.Sender() {
+		    public void send(StompFrame frame) throws Exception {
+			// the queue already keeps the task from waiting on the
+			// server, no need to pause after each frame
+			deliver(frame);
+		    }
+		}, OutboundQueue.DEFAULT_CAPACITY);
+	    }
+	    return outboundQueue;
+	} finally {
+	    outboundLock.unlock();
+	}
+    }
+
+    /**
+     * Waits until all the buffered messages have been sent. Does nothing if
+     * output is not buffered.
+     */
+    public void flushOutput() {
+	OutboundQueue queue;
+	outboundLock.lock();
+	try {
+	    queue = outboundQueue;
+	} finally {
+	    outboundLock.unlock();
+	}
+	if (queue == null) {
+	    return;
+	}
+	try {
+	    queue.flush();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    logger.error("Interrupted flushing output", e);
+	}
+    }
+
+    /**
+     * Sends all the buffered messages and stops the sending thread.
+     */
+    private void closeOutboundQueue() {
+	OutboundQueue queue;
+	outboundLock.lock();
+	try {
+	    queue = outboundQueue;
+	    outboundQueue = null;
+	} finally {
+	    outboundLock.unlock();
+	}
+	if (queue == null) {
+	    return;
+	}
+	try {
+	    queue.close();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    logger.error("Interrupted flushing output", e);
+	}
+    }
+
+    /**
+     * Gets a kept-alive stomp connection.
      * 
      * @return a stomp connection
      * @throws IOException if the connection could not be established.
      * @throws URISyntaxException if the host or port is missing from the
      *                            stomp configuration.
      */
-    private BlockingConnection getConnection() throws IOException,
+    private HeartBeatConnection getConnection() throws IOException,
 	    URISyntaxException {
 
         Object uri = stompConfig.get("url");
@@ -221,29 +758,21 @@ public class MaestroWorker {
 		        "Missing Stomp Configuration. Make Sure Host and Port Are Set");
 	    }
 
-	    return stompConnectionFactory.getConnection(h.toString(),
-                Integer.parseInt(p.toString()));
+	    return stompConnectionFactory.acquire("stomp://" + h + ":"
+		    + Integer.parseInt(p.toString()));
         }
         else {
-	    return stompConnectionFactory.getConnection(uri.toString());
+	    return stompConnectionFactory.acquire(uri.toString());
         }
     }
     
     /**
-     * Closes the specified connection and cleans up the state of the worker.
+     * Cleans up the state of the worker after a send. The connection is left
+     * open for the next send.
      * 
-     * @param connection the connection to close.
+     * @param fields the work item fields.
      */
-    private void closeConnectionAndCleanup(BlockingConnection connection) {
-	if (connection != null) {
-	    connection.suspend();
-	    try {
-		connection.close();
-	    } catch (IOException e) {
-		// ignore
-	    }
-	}
-
+    private void cleanup(String[] fields) {
 	this.workitem.remove(OUTPUT_META);
 	this.workitem.remove(STREAMING_META);
 	this.workitem.remove(CANCEL_META);
@@ -251,17 +780,6 @@ public class MaestroWorker {
 		&& !Boolean.parseBoolean(this.workitem.get(WAITING_META).toString())) {
 	    this.workitem.remove(WAITING_META);
 	}
-    }
-    
-    /**
-     * Closes the stomp connection and cleans up.
-     * 
-     * @param connection the stomp connection.
-     * @param fields the work item fields.
-     */
-    private void closeConnectionAndCleanup(BlockingConnection connection,
-	    String[] fields) {
-	this.closeConnectionAndCleanup(connection);
 	for (String field : fields) {
 	    if (!WAITING_META.equals(field))
 		this.workitem.remove(field);
@@ -335,7 +853,9 @@ public class MaestroWorker {
     }
 
     /**
-     * Main entry point from the agent.
+     * Main entry point from the agent. Runs the plugin on the calling thread;
+     * use {@link MaestroWorkerPool#submit(Class, String, Map, Map)} to run it
+     * on a virtual thread in the {@link TaskThreads} virtual mode.
      * 
      * @param methodName name of the method to execute.
      * @param workitem the work item.
@@ -344,21 +864,80 @@ public class MaestroWorker {
     @SuppressWarnings("rawtypes")
     public final Map perform(String methodName, Map<String, Object> workitem) {
 	String className = this.getClass().getName();
+	boolean exportTrace = false;
+	if (this.trace == null && TaskTrace.TRACE_DIR != null) {
+	    this.trace = new TaskTrace();
+	    exportTrace = true;
+	}
+	TaskTrace trace = this.trace;
+	long performStart = trace != null ? System.nanoTime() : 0;
+	Object event = events.beginPerform();
+	String outcome = "success";
+	OutputPoll poll = null;
 	try {
 	    setWorkitem(workitem);
+	    poll = startOutputPoll();
 
 	    String msg = format("Executing plugin: %s.%s%n", className, methodName);
 	    logger.info(msg);
 	    writeOutput(msg);
 
-	    Method method = getClass().getMethod(methodName);
-	    method.invoke(this);
+	    PluginDispatcher dispatcher = getDispatcher(getClass());
+	    Method method = null;
+	    String[] memoized;
+	    if (dispatcher.hasMethod(methodName)) {
+		memoized = dispatcher.getMemoizedFields(methodName);
+	    } else {
+		method = findMethod(methodName);
+		Memoize memoize = method.getAnnotation(Memoize.class);
+		memoized = memoize == null ? null : memoize.value();
+	    }
+	    String cacheKey = memoized == null ? null
+		    : cacheKey(className, methodName, memoized);
+	    Map<String, Object> cached = cacheKey == null ? null
+		    : resultCache.get(cacheKey);
+	    Map<String, Object> before = null;
+	    if (cacheKey != null && cached == null) {
+		before = snapshotFields();
+		if (before == null) {
+		    cacheKey = null;
+		}
+	    }
+	    if (cached != null) {
+		outcome = "cached";
+		restoreFields(cached);
+		msg = format("Restored cached result of %s.%s (cache hits: %d, misses: %d)%n",
+			className, methodName, resultCache.getHits(),
+			resultCache.getMisses());
+		logger.info(msg);
+		writeOutput(msg);
+	    } else {
+		long invokeStart = trace != null ? System.nanoTime() : 0;
+		try {
+		    if (method != null) {
+			method.invoke(this);
+		    } else {
+			dispatcher.invoke(this, methodName);
+		    }
+		} finally {
+		    if (trace != null) {
+			trace.record(methodName, invokeStart);
+		    }
+		}
+		if (cacheKey != null && getError() == null) {
+		    Map<String, Object> changed = changedFields(before);
+		    if (changed != null) {
+			resultCache.put(cacheKey, changed);
+		    }
+		}
+	    }
 
 	    msg = format("Finished plugin execution: %s.%s%n", className, methodName);
         logger.info(msg);
 	    writeOutput(msg);
 
 	} catch (InvocationTargetException e) {
+	    outcome = "failed";
 	    // get the root cause of the exception
 	    String msg = format("Plugin %s.%s failed: %s ", className, methodName,
 		    getStackTrace(e.getCause()));
@@ -366,15 +945,296 @@ public class MaestroWorker {
 	    this.writeOutput(msg);
 	    this.setError(msg);
 	} catch (Exception e) {
+	    outcome = "error";
 	    String msg = format("Plugin %s.%s failed: %s ", className, methodName,
 		    getStackTrace(e));
         logger.error(msg);
 	    this.writeOutput(msg);
 	    this.setError(msg);
+	} finally {
+	    if (poll != null) {
+		poll.stop();
+	    }
+	}
+	// the agent sends the returned workitem, make sure all output is
+	// delivered before it
+	flushCompactedOutput();
+	closeOutboundQueue();
+	events.commitPerform(event, className, methodName, outcome);
+	if (trace != null) {
+	    trace.record("perform", performStart);
+	    if (exportTrace) {
+		exportTrace(trace, className, methodName);
+		this.trace = null;
+	    }
 	}
 	return getWorkitem();
     }
 
+    /**
+     * Writes the trace of a task to the {@code maestro.trace.dir} directory.
+     * 
+     * @param trace the trace.
+     * @param className the plugin class name.
+     * @param methodName the plugin method name.
+     */
+    private void exportTrace(TaskTrace trace, String className, String methodName) {
+	File file = new File(TaskTrace.TRACE_DIR, format("%s.%s-%d.json",
+		className, methodName, System.currentTimeMillis()));
+	try {
+	    trace.write(file);
+	    logger.info("Wrote trace to " + file);
+	} catch (IOException e) {
+	    logger.error("Error writing trace to " + file, e);
+	}
+    }
+
+    /**
+     * Runs the specified sub-steps concurrently, with one thread per step, and
+     * waits for all of them to finish. The threads are virtual threads in the
+     * {@link TaskThreads} virtual mode, and otherwise come from a fixed
+     * pool. See {@link #runSubSteps(Map, ExecutorService)}.
+     * 
+     * @param steps the steps, by name.
+     * @return true if all the steps succeeded.
+     */
+    public boolean runSubSteps(Map<String, ? extends SubStep> steps) {
+	ExecutorService pool = TaskThreads.isVirtual()
+		? TaskThreads.newTaskExecutor("maestro-substep")
+		: Executors.newFixedThreadPool(Math.max(1, steps.size()));
+	try {
+	    return runSubSteps(steps, pool);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * Runs the specified sub-steps concurrently on the specified executor and
+     * waits for all of them to finish, so the task takes as long as its
+     * longest step. The output of each step is prefixed with its name and
+     * streamed as it is written. Once all the steps have finished, the fields
+     * they set are merged into the work item fields, and their errors into
+     * the work item error, in the iteration order of the map, so the result
+     * does not depend on which step finished first.
+     * 
+     * @param steps the steps, by name; use a {@link java.util.LinkedHashMap}
+     *              to control the merge order.
+     * @param executor the executor to run the steps on.
+     * @return true if all the steps succeeded.
+     */
+    public boolean runSubSteps(Map<String, ? extends SubStep> steps,
+	    ExecutorService executor) {
+	Map<String, Object> snapshot = Collections.unmodifiableMap(
+		new HashMap<String, Object>(getFields()));
+	List<SubStepContext> contexts = new ArrayList<SubStepContext>(steps.size());
+	List<Future<?>> futures = new ArrayList<Future<?>>(steps.size());
+	for (Map.Entry<String, ? extends SubStep> entry : steps.entrySet()) {
+	    final SubStep step = entry.getValue();
+	    final SubStepContext context = new SubStepContext(this, entry.getKey(), snapshot);
+	    contexts.add(context);
+	    futures.add(executor.submit(new Callable<Void>() {
+		public Void call() throws Exception {
+		    step.run(context);
+		    return null;
+		}
+	    }));
+	}
+
+	for (int i = 0; i < futures.size(); i++) {
+	    SubStepContext context = contexts.get(i);
+	    try {
+		futures.get(i).get();
+	    } catch (ExecutionException e) {
+		context.setError(format("Sub-step %s failed: %s", context.getName(),
+			getStackTrace(e.getCause())));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		for (Future<?> future : futures) {
+		    future.cancel(true);
+		}
+		context.setError(format("Sub-step %s interrupted", context.getName()));
+	    }
+	}
+
+	StringBuilder errors = new StringBuilder();
+	for (SubStepContext context : contexts) {
+	    getFields().putAll(context.getFields());
+	    if (context.getError() != null) {
+		if (errors.length() > 0) {
+		    errors.append('\n');
+		}
+		errors.append(context.getError());
+	    }
+	}
+	if (errors.length() > 0) {
+	    setError(getError() == null ? errors.toString() : getError() + "\n" + errors);
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Builds the result cache key of a {@link Memoize} method from the values
+     * of its key fields.
+     * 
+     * @param className the plugin class name.
+     * @param methodName the plugin method name.
+     * @param keyFields the names of the key fields.
+     * @return the cache key, null if a field value can't be serialized.
+     */
+    private String cacheKey(String className, String methodName,
+	    String[] keyFields) {
+	Map<String, Object> key = new LinkedHashMap<String, Object>();
+	for (String field : keyFields) {
+	    key.put(field, getFields().get(field));
+	}
+	try {
+	    return className + "." + methodName + JSON.std.asString(key);
+	} catch (IOException e) {
+	    logger.warn(format("Not caching %s.%s, its input fields can't be serialized: %s",
+		    className, methodName, e));
+	    return null;
+	}
+    }
+
+    /**
+     * Returns a copy of the fields, taken through JSON so it shares nothing
+     * with the work item.
+     * 
+     * @return the copy, null if the fields can't be serialized.
+     */
+    private Map<String, Object> snapshotFields() {
+	try {
+	    return JSON.std.mapFrom(JSON.std.asString(getFields()));
+	} catch (IOException e) {
+	    logger.warn("Not caching the result, the fields can't be serialized: " + e);
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the fields that were added or changed since the snapshot. The
+     * names of the fields that were removed are listed under
+     * {@link #REMOVED_FIELDS}.
+     * 
+     * @param before a copy of the fields taken before the method ran.
+     * @return the changed fields, null if the fields can't be serialized.
+     */
+    private Map<String, Object> changedFields(Map<String, Object> before) {
+	Map<String, Object> after = snapshotFields();
+	if (after == null) {
+	    return null;
+	}
+	Map<String, Object> changed = new LinkedHashMap<String, Object>();
+	for (Map.Entry<String, Object> entry : after.entrySet()) {
+	    Object previous = before.get(entry.getKey());
+	    if (previous == null ? entry.getValue() != null
+		    : !previous.equals(entry.getValue())) {
+		changed.put(entry.getKey(), entry.getValue());
+	    }
+	}
+	List<String> removed = new ArrayList<String>();
+	for (String field : before.keySet()) {
+	    if (!after.containsKey(field)) {
+		removed.add(field);
+	    }
+	}
+	if (!removed.isEmpty()) {
+	    changed.put(REMOVED_FIELDS, removed);
+	}
+	return changed;
+    }
+
+    /**
+     * Applies a cached result to the work item: removes the fields the method
+     * removed and sets the ones it added or changed.
+     * 
+     * @param cached the fields returned by {@link #changedFields(Map)}.
+     */
+    private void restoreFields(Map<String, Object> cached) {
+	for (Map.Entry<String, Object> entry : cached.entrySet()) {
+	    if (!REMOVED_FIELDS.equals(entry.getKey())) {
+		getFields().put(entry.getKey(), entry.getValue());
+	    } else if (entry.getValue() instanceof List) {
+		for (Object field : (List<?>) entry.getValue()) {
+		    getFields().remove(field);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns the dispatcher generated for the specified worker class by the
+     * {@link DispatcherProcessor}, loading it the first time.
+     * 
+     * @param clazz the worker class.
+     * @return the dispatcher, one that knows no method if there is none.
+     */
+    static PluginDispatcher getDispatcher(Class<?> clazz) {
+	return dispatchers.get(clazz);
+    }
+
+    private static PluginDispatcher loadDispatcher(Class<?> clazz) {
+	try {
+	    return (PluginDispatcher) Class.forName(
+		    clazz.getName() + DispatcherProcessor.DISPATCHER_SUFFIX, true,
+		    clazz.getClassLoader()).getDeclaredConstructor().newInstance();
+	} catch (ClassNotFoundException e) {
+	    // compiled without the processor
+	} catch (Exception e) {
+	    logger.warn("Error loading the plugin dispatcher of " + clazz.getName()
+		    + ", using reflection", e);
+	} catch (LinkageError e) {
+	    logger.warn("Error loading the plugin dispatcher of " + clazz.getName()
+		    + ", using reflection", e);
+	}
+	return NO_DISPATCHER;
+    }
+
+    /**
+     * Looks up the plugin method, remembering it for the next time this
+     * instance is reused.
+     * 
+     * @param methodName the method name.
+     * @return the method.
+     * @throws NoSuchMethodException if there is no such public method.
+     */
+    private Method findMethod(String methodName) throws NoSuchMethodException {
+	Method method = methods.get(methodName);
+	if (method == null) {
+	    method = getClass().getMethod(methodName);
+	    methods.put(methodName, method);
+	}
+	return method;
+    }
+
+    /**
+     * Resets the per-task state of the worker so the instance can be reused
+     * for another task by a {@link MaestroWorkerPool}: sends any buffered
+     * output, then clears the work item (and with it the fields, links and
+     * error) and the trace, and finally calls {@link #resetState()}.
+     */
+    final void resetForReuse() {
+	if (this.workitem != null) {
+	    flushCompactedOutput();
+	}
+	closeOutboundQueue();
+	this.workitem = null;
+	this.trace = null;
+	resetState();
+    }
+
+    /**
+     * Lifecycle hook called by {@link #resetForReuse()}. Plugins that keep
+     * per-task state in fields should clear it here; resources that are expensive to
+     * create and safe to share between tasks (HTTP clients, parsed
+     * configuration, compiled patterns) can be kept.
+     */
+    protected void resetState() {
+	// nothing to reset by default
+    }
+
     /**
      * Returns the fields from the work item.
      * 
@@ -463,6 +1323,62 @@ public class MaestroWorker {
     }
 
     
+    /**
+     * Returns the cache results of {@link Memoize} methods are kept in.
+     * 
+     * @return the result cache.
+     */
+    public ResultCache getResultCache() {
+	return resultCache;
+    }
+
+    /**
+     * Sets the cache results of {@link Memoize} methods are kept in. Defaults
+     * to the shared {@link ResultCache#getInstance()}.
+     * 
+     * @param resultCache the result cache.
+     */
+    public void setResultCache(ResultCache resultCache) {
+	this.resultCache = resultCache;
+    }
+
+    /**
+     * Returns the compactor output is passed through.
+     * 
+     * @return the compactor, null if output is sent as written.
+     */
+    public OutputCompactor getOutputCompactor() {
+	return outputCompactor;
+    }
+
+    /**
+     * Sets the compactor output is passed through, null to send output as
+     * written.
+     * 
+     * @param outputCompactor the compactor.
+     */
+    public void setOutputCompactor(OutputCompactor outputCompactor) {
+	this.outputCompactor = outputCompactor;
+    }
+
+    /**
+     * Returns the trace spans are being recorded into.
+     * 
+     * @return the trace, null if tracing is disabled.
+     */
+    public TaskTrace getTrace() {
+	return trace;
+    }
+
+    /**
+     * Sets the trace to record spans into, null to disable tracing.
+     * 
+     * @param trace the trace.
+     */
+    public void setTrace(TaskTrace trace) {
+	this.trace = trace;
+    }
+
     /**
      * Sets the StompConnectionFactory. This is used to help during unit testing.
      */
@@ -485,7 +1401,7 @@ public class MaestroWorker {
 		    RECORD_ID_META, RECORD_FIELD_META, RECORD_VALUE_META };
 	    String[] values = { String.valueOf(true), String.valueOf(true),
 		    model, nameOrId, field, value };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.PERSIST, Lane.ORDERED);
 	} catch (Exception e) {
 	    logger.error("Error updating fields in record, field: "
 		    + field + ", value: " + value, e);
@@ -507,7 +1423,7 @@ public class MaestroWorker {
 	    String[] values = { String.valueOf(true), String.valueOf(true),
 		    model, StringUtils.join(recordFields, ","),
 		    StringUtils.join(recordValues, ",") };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.PERSIST, Lane.ORDERED);
 	} catch (Exception e) {
 	    logger.error("Error creating record, fields: "
 		    + StringUtils.join(recordFields, ",") + ", values: "
@@ -526,7 +1442,7 @@ public class MaestroWorker {
 		    NAME_META };
 	    String[] values = { String.valueOf(true), String.valueOf(true),
 		    model, nameOrId };
-	    sendFieldsWithValues(fields, values);
+	    sendFieldsWithValues(fields, values, MessageClass.PERSIST, Lane.ORDERED);
 	} catch (Exception e) {
 	    logger.error("Error deleting record: " + model + " - "
 		    + nameOrId, e);
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of {@link MaestroWorker} instances, so the agent can reuse a worker
+ * across tasks instead of creating a new one each time. Reused workers keep
+ * their stomp connection factory, the plugin methods they already looked up
+ * and whatever resources the plugin holds in its fields; their per-task state
+ * is cleared with {@link MaestroWorker#resetForReuse()} when they are released.
+ * <p>
+ * Tasks can also be run asynchronously with
+ * {@link #submit(Class, String, Map, Map)}, each one on its own thread from
+ * {@link TaskThreads}: a virtual thread when {@code -Dmaestro.threads=virtual}
+ * is set on a JVM that supports them, which suits plugins that spend most of
+ * their time blocked on I/O.
+ */
+public class MaestroWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaestroWorkerPool.class);
+
+    /**
+     * Default maximum number of idle instances kept per worker class.
+     */
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    private final ConcurrentMap<Class<?>, Queue<MaestroWorker>> idle =
+	    new ConcurrentHashMap<Class<?>, Queue<MaestroWorker>>();
+    private final ConcurrentMap<Class<?>, AtomicInteger> idleCounts =
+	    new ConcurrentHashMap<Class<?>, AtomicInteger>();
+    private final int maxIdle;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a pool keeping up to {@link #DEFAULT_MAX_IDLE} idle instances per
+     * worker class.
+     */
+    public MaestroWorkerPool() {
+	this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a pool.
+     * 
+     * @param maxIdle maximum number of idle instances kept per worker class.
+     */
+    public MaestroWorkerPool(int maxIdle) {
+	this(maxIdle, TaskThreads.newTaskExecutor("maestro-task"));
+    }
+
+    /**
+     * Creates a pool running submitted tasks on the specified executor.
+     * 
+     * @param maxIdle maximum number of idle instances kept per worker class.
+     * @param executor the executor submitted tasks run on.
+     */
+    public MaestroWorkerPool(int maxIdle, ExecutorService executor) {
+	this.maxIdle = maxIdle;
+	this.executor = executor;
+    }
+
+    /**
+     * Returns an idle instance of the specified worker class, or a new one if
+     * there is none.
+     * 
+     * @param clazz the worker class, must have a public no-arg constructor.
+     * @return a worker ready to perform a task.
+     * @throws InstantiationException if the worker could not be created.
+     * @throws IllegalAccessException if the constructor is not accessible.
+     */
+    public <T extends MaestroWorker> T borrow(Class<T> clazz)
+	    throws InstantiationException, IllegalAccessException {
+	Queue<MaestroWorker> queue = idle.get(clazz);
+	MaestroWorker worker = queue == null ? null : queue.poll();
+	if (worker != null) {
+	    idleCount(clazz).decrementAndGet();
+	    return clazz.cast(worker);
+	}
+	return newWorker(clazz);
+    }
+
+    /**
+     * Creates a worker with its no-arg constructor. Exceptions thrown by the
+     * constructor are rethrown as they are if unchecked, or else wrapped.
+     * 
+     * @param clazz the worker class.
+     * @return the new worker.
+     * @throws InstantiationException if the worker could not be created.
+     * @throws IllegalAccessException if the constructor is not accessible.
+     */
+    private static <T extends MaestroWorker> T newWorker(Class<T> clazz)
+	    throws InstantiationException, IllegalAccessException {
+	try {
+	    return clazz.getDeclaredConstructor().newInstance();
+	} catch (NoSuchMethodException e) {
+	    InstantiationException failure = new InstantiationException(
+		    clazz.getName() + " has no no-arg constructor");
+	    failure.initCause(e);
+	    throw failure;
+	} catch (InvocationTargetException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof RuntimeException) {
+		throw (RuntimeException) cause;
+	    }
+	    if (cause instanceof Error) {
+		throw (Error) cause;
+	    }
+	    InstantiationException failure = new InstantiationException(
+		    "Error creating " + clazz.getName() + ": " + cause);
+	    failure.initCause(cause);
+	    throw failure;
+	}
+    }
+
+    /**
+     * Resets the worker and returns it to the pool. If the pool already holds
+     * enough idle instances of its class it is dropped instead.
+     * 
+     * @param worker the worker.
+     */
+    public void release(MaestroWorker worker) {
+	try {
+	    worker.resetForReuse();
+	} catch (RuntimeException e) {
+	    logger.warn("Error resetting " + worker.getClass().getName()
+		    + ", discarding it", e);
+	    return;
+	}
+	Class<?> clazz = worker.getClass();
+	if (idleCount(clazz).incrementAndGet() > maxIdle) {
+	    idleCount(clazz).decrementAndGet();
+	    return;
+	}
+	Queue<MaestroWorker> queue = idle.get(clazz);
+	if (queue == null) {
+	    queue = new ConcurrentLinkedQueue<MaestroWorker>();
+	    Queue<MaestroWorker> existing = idle.putIfAbsent(clazz, queue);
+	    if (existing != null) {
+		queue = existing;
+	    }
+	}
+	queue.offer(worker);
+    }
+
+    /**
+     * Performs a task with a pooled worker: borrows an instance, sets its
+     * stomp configuration, calls {@link MaestroWorker#perform(String, Map)}
+     * on the calling thread and releases it.
+     * 
+     * @param clazz the worker class.
+     * @param methodName name of the method to execute.
+     * @param workitem the work item.
+     * @param stompConfig the stomp configuration.
+     * @return the work item.
+     * @throws InstantiationException if the worker could not be created.
+     * @throws IllegalAccessException if the constructor is not accessible.
+     */
+    @SuppressWarnings("rawtypes")
+    public Map perform(Class<? extends MaestroWorker> clazz, String methodName,
+	    Map<String, Object> workitem, Map<String, Object> stompConfig)
+	    throws InstantiationException, IllegalAccessException {
+	MaestroWorker worker = borrow(clazz);
+	try {
+	    worker.setStompConfig(stompConfig);
+	    return worker.perform(methodName, workitem);
+	} finally {
+	    release(worker);
+	}
+    }
+
+    /**
+     * Performs a task asynchronously with a pooled worker, see
+     * {@link #perform(Class, String, Map, Map)}.
+     * 
+     * @param clazz the worker class.
+     * @param methodName name of the method to execute.
+     * @param workitem the work item.
+     * @param stompConfig the stomp configuration.
+     * @return the future work item.
+     */
+    @SuppressWarnings("rawtypes")
+    public Future<Map> submit(final Class<? extends MaestroWorker> clazz,
+	    final String methodName, final Map<String, Object> workitem,
+	    final Map<String, Object> stompConfig) {
+	return executor.submit(new Callable<Map>() {
+	    public Map call() throws Exception {
+		return perform(clazz, methodName, workitem, stompConfig);
+	    }
+	});
+    }
+
+    /**
+     * Stops accepting submitted tasks. Tasks already submitted still run.
+     */
+    public void shutdown() {
+	executor.shutdown();
+    }
+
+    /**
+     * Returns the number of idle instances of the specified class.
+     * 
+     * @param clazz the worker class.
+     * @return the number of idle instances.
+     */
+    public int getIdleCount(Class<? extends MaestroWorker> clazz) {
+	return idleCount(clazz).get();
+    }
+
+    private AtomicInteger idleCount(Class<?> clazz) {
+	AtomicInteger count = idleCounts.get(clazz);
+	if (count == null) {
+	    count = new AtomicInteger();
+	    AtomicInteger existing = idleCounts.putIfAbsent(clazz, count);
+	    if (existing != null) {
+		count = existing;
+	    }
+	}
+	return count;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Map;
+
+/**
+ * Marks a plugin method as idempotent for the specified input fields: when
+ * {@link MaestroWorker#perform(String, Map)} is called again with the same
+ * values for those fields, the fields the method set or removed on the
+ * previous run (including links and context outputs) are restored from the
+ * {@link ResultCache} instead of invoking the method. Runs that set an error
+ * are not cached.
+ * 
+ * <pre>
+ * &#64;Memoize({ "artifact", "checksum" })
+ * public void analyze() { ... }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Memoize {
+
+    /**
+     * The names of the input fields that determine the result.
+     */
+    String[] value();
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * An in-process stomp broker, selected with a {@code mem://<name>} url in the
+ * stomp configuration, so the messaging code can be tested and benchmarked
+ * without a real broker, ports or network. Every destination behaves like a
+ * queue: messages sent while there is no subscriber are kept, and each
+ * message goes to one subscriber, round robin. Receipts are sent for frames
+ * with a {@code receipt} header.
+ * <p>
+ * Latency and failures can be injected to exercise slow brokers, backpressure
+ * and failover deterministically:
+ *
+ * <pre>
+ * MemoryBroker broker = MemoryBroker.get("test");
+ * broker.setCapacity(10);     // sends block while 10 messages are pending
+ * broker.setLatency(5);       // each send takes 5ms
+ * broker.failNextSends(1);    // the next send fails with an IOException
+ * broker.disconnectAll();     // like a broker restart
+ * broker.setHeartBeat(1000);  // new connections get heart-beats every second
+ * broker.setHeartBeatsPaused(true); // like a socket that went away silently
+ * </pre>
+ */
+public class MemoryBroker {
+
+    /**
+     * The URI scheme selecting the in-memory broker.
+     */
+    public static final String SCHEME = "mem";
+
+    private static final ConcurrentMap<String, MemoryBroker> brokers =
+	    new ConcurrentHashMap<String, MemoryBroker>();
+
+    private final String name;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition changed = lock.newCondition();
+    private final Map<String, LinkedList<StompFrame>> backlogs =
+	    new HashMap<String, LinkedList<StompFrame>>();
+    private final Map<String, List<MemoryConnection.Subscription>> subscriptions =
+	    new HashMap<String, List<MemoryConnection.Subscription>>();
+    private final Map<String, Integer> nextSubscriber = new HashMap<String, Integer>();
+    private final List<MemoryConnection> connections = new ArrayList<MemoryConnection>();
+
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile long latency;
+    private volatile boolean refuseConnections;
+    private volatile long heartBeat;
+    private long heartBeatsPausedAt;
+    private int failures;
+    private double failureRate;
+    private Random random = new Random();
+    private long enqueued;
+
+    /**
+     * Creates a broker that is not registered, so it can't be reached with a
+     * {@code mem://} url; use {@link #get(String)} for that.
+     *
+     * @param name the broker name.
+     */
+    public MemoryBroker(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Returns the broker with the specified name, creating it if needed.
+     *
+     * @param name the broker name.
+     * @return the broker.
+     */
+    public static MemoryBroker get(String name) {
+	MemoryBroker broker = brokers.get(name);
+	if (broker == null) {
+	    broker = new MemoryBroker(name);
+	    MemoryBroker existing = brokers.putIfAbsent(name, broker);
+	    if (existing != null) {
+		broker = existing;
+	    }
+	}
+	return broker;
+    }
+
+    /**
+     * Returns the broker a {@code mem://<name>} url refers to.
+     *
+     * @param uri the url.
+     * @return the broker.
+     */
+    static MemoryBroker forUri(String uri) {
+	String name = uri.substring(SCHEME.length() + 3);
+	int end = name.indexOf('/');
+	if (end >= 0) {
+	    name = name.substring(0, end);
+	}
+	return get(name);
+    }
+
+    /**
+     * Returns whether the url refers to an in-memory broker.
+     *
+     * @param uri the url.
+     * @return true for {@code mem://} urls.
+     */
+    static boolean isMemoryUri(String uri) {
+	return uri.startsWith(SCHEME + "://");
+    }
+
+    /**
+     * Returns the broker name.
+     *
+     * @return the name.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Opens a connection to the broker.
+     *
+     * @return the connection.
+     * @throws IOException if the broker refuses connections.
+     */
+    public MemoryConnection connect() throws IOException {
+	if (refuseConnections) {
+	    throw new IOException("Connection to mem://" + name + " refused");
+	}
+	MemoryConnection connection = new MemoryConnection(this);
+	lock.lock();
+	try {
+	    connections.add(connection);
+	} finally {
+	    lock.unlock();
+	}
+	return connection;
+    }
+
+    /**
+     * Closes every connection, like a broker restart, and removes the broker
+     * from the registry. Pending messages are dropped.
+     */
+    public void stop() {
+	disconnectAll();
+	lock.lock();
+	try {
+	    backlogs.clear();
+	    changed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+	brokers.remove(name, this);
+    }
+
+    /**
+     * Closes every connection, as if the network went away. Pending messages
+     * are kept and delivered to the next subscribers.
+     */
+    public void disconnectAll() {
+	List<MemoryConnection> open;
+	lock.lock();
+	try {
+	    open = new ArrayList<MemoryConnection>(connections);
+	} finally {
+	    lock.unlock();
+	}
+	for (MemoryConnection connection : open) {
+	    connection.close();
+	}
+    }
+
+    /**
+     * Sets how many messages can be pending for a destination before sends to
+     * it block, like producer flow control.
+     *
+     * @param capacity the number of messages.
+     */
+    public void setCapacity(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Sets the time each send takes.
+     *
+     * @param latency the latency in milliseconds, 0 for none.
+     */
+    public void setLatency(long latency) {
+	this.latency = latency;
+    }
+
+    /**
+     * Makes the next sends fail with an IOException.
+     *
+     * @param count the number of sends to fail.
+     */
+    public void failNextSends(int count) {
+	lock.lock();
+	try {
+	    failures = count;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Makes a fraction of the sends fail with an IOException.
+     *
+     * @param rate the fraction of failed sends, between 0 and 1.
+     * @param seed the seed of the random generator, so runs are repeatable.
+     */
+    public void setFailureRate(double rate, long seed) {
+	lock.lock();
+	try {
+	    failureRate = rate;
+	    random = new Random(seed);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Makes new connections fail, to exercise reconnects.
+     *
+     * @param refuseConnections true to refuse connections.
+     */
+    public void setRefuseConnections(boolean refuseConnections) {
+	this.refuseConnections = refuseConnections;
+    }
+
+    /**
+     * Sets the interval the broker offers to send heart-beats at to new
+     * connections. Heart-beats are counted as received by
+     * {@link MemoryConnection#getReceivedCount()} as time passes.
+     *
+     * @param heartBeat the interval in milliseconds, 0 for none.
+     */
+    public void setHeartBeat(long heartBeat) {
+	this.heartBeat = heartBeat;
+    }
+
+    long getHeartBeat() {
+	return heartBeat;
+    }
+
+    /**
+     * Stops or resumes heart-beats to every connection, to exercise the
+     * detection of connections whose socket went away without being closed.
+     *
+     * @param paused true to stop sending heart-beats.
+     */
+    public void setHeartBeatsPaused(boolean paused) {
+	lock.lock();
+	try {
+	    heartBeatsPausedAt = paused ? System.currentTimeMillis() : 0;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the number of heart-beats sent since the specified time. Called
+     * with the lock held.
+     */
+    long heartBeatsSince(long since) {
+	if (heartBeat <= 0) {
+	    return 0;
+	}
+	long until = heartBeatsPausedAt > 0 ? heartBeatsPausedAt : System.currentTimeMillis();
+	return Math.max(0, until - since) / heartBeat;
+    }
+
+    /**
+     * Returns the number of messages sent to the broker.
+     *
+     * @return the number of messages.
+     */
+    public long getEnqueueCount() {
+	lock.lock();
+	try {
+	    return enqueued;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the number of messages sent to a destination that no subscriber
+     * has been given yet.
+     *
+     * @param destination the destination.
+     * @return the number of messages.
+     */
+    public int getPendingCount(String destination) {
+	lock.lock();
+	try {
+	    LinkedList<StompFrame> backlog = backlogs.get(destination);
+	    return backlog == null ? 0 : backlog.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Queues a message, blocking while the destination is full and the
+     * sending connection is open.
+     */
+    void send(MemoryConnection connection, String destination, StompFrame frame)
+	    throws IOException {
+	if (latency > 0) {
+	    try {
+		TimeUnit.MILLISECONDS.sleep(latency);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Interrupted sending to mem://" + name);
+	    }
+	}
+	lock.lock();
+	try {
+	    if (failures > 0) {
+		failures--;
+		throw new IOException("Injected failure sending to mem://" + name);
+	    }
+	    if (failureRate > 0 && random.nextDouble() < failureRate) {
+		throw new IOException("Injected failure sending to mem://" + name);
+	    }
+	    LinkedList<StompFrame> backlog = backlog(destination);
+	    while (backlog.size() >= capacity) {
+		if (connection.isClosed()) {
+		    throw new IOException("Connection to mem://" + name + " is closed");
+		}
+		try {
+		    changed.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException("Interrupted sending to mem://" + name);
+		}
+	    }
+	    backlog.add(frame);
+	    enqueued++;
+	    dispatch(destination);
+	    changed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Adds a subscription and gives it the pending messages. Called with the
+     * lock held.
+     */
+    void subscribe(MemoryConnection.Subscription subscription) {
+	List<MemoryConnection.Subscription> list = subscriptions.get(subscription.destination);
+	if (list == null) {
+	    list = new ArrayList<MemoryConnection.Subscription>();
+	    subscriptions.put(subscription.destination, list);
+	}
+	list.add(subscription);
+	dispatch(subscription.destination);
+	changed.signalAll();
+    }
+
+    /**
+     * Removes a subscription. Called with the lock held.
+     */
+    void unsubscribe(MemoryConnection.Subscription subscription) {
+	List<MemoryConnection.Subscription> list = subscriptions.get(subscription.destination);
+	if (list != null) {
+	    list.remove(subscription);
+	}
+    }
+
+    /**
+     * Removes a closed connection and gives the messages it had not received
+     * back to the other subscribers. Called with the lock held.
+     */
+    void disconnected(MemoryConnection connection,
+	    Map<String, List<StompFrame>> unreceived) {
+	connections.remove(connection);
+	for (Map.Entry<String, List<StompFrame>> entry : unreceived.entrySet()) {
+	    backlog(entry.getKey()).addAll(0, entry.getValue());
+	    dispatch(entry.getKey());
+	}
+	changed.signalAll();
+    }
+
+    /**
+     * Moves pending messages of a destination to its subscribers, round robin,
+     * as long as they have room. Called with the lock held.
+     */
+    void dispatch(String destination) {
+	LinkedList<StompFrame> backlog = backlogs.get(destination);
+	List<MemoryConnection.Subscription> list = subscriptions.get(destination);
+	if (backlog == null || list == null || list.isEmpty()) {
+	    return;
+	}
+	Integer next = nextSubscriber.get(destination);
+	int i = next == null ? 0 : next;
+	int full = 0;
+	while (!backlog.isEmpty() && full < list.size()) {
+	    MemoryConnection.Subscription subscription = list.get(i % list.size());
+	    i++;
+	    if (subscription.connection.offer(subscription, backlog.getFirst(), capacity)) {
+		backlog.removeFirst();
+		full = 0;
+	    } else {
+		full++;
+	    }
+	}
+	nextSubscriber.put(destination, i % list.size());
+    }
+
+    int getCapacity() {
+	return capacity;
+    }
+
+    private LinkedList<StompFrame> backlog(String destination) {
+	LinkedList<StompFrame> backlog = backlogs.get(destination);
+	if (backlog == null) {
+	    backlog = new LinkedList<StompFrame>();
+	    backlogs.put(destination, backlog);
+	}
+	return backlog;
+    }
+}
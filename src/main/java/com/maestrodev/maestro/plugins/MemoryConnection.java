@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * A connection to a {@link MemoryBroker}, with the same blocking API as the
+ * stomp client's {@code BlockingConnection}: SEND, SUBSCRIBE, UNSUBSCRIBE and
+ * DISCONNECT frames go through {@link #send(StompFrame)}, and MESSAGE and
+ * RECEIPT frames are read with {@link #receive()}. Messages are acknowledged
+ * as they are received; those not received when the connection closes go
+ * back to the broker.
+ */
+public class MemoryConnection implements FrameConnection {
+
+    private static final AsciiBuffer VERSION = new AsciiBuffer("version");
+
+    /**
+     * A subscription of this connection to a destination.
+     */
+    static class Subscription {
+	final MemoryConnection connection;
+	final String destination;
+	final AsciiBuffer id;
+	int pending;
+
+	Subscription(MemoryConnection connection, String destination, AsciiBuffer id) {
+	    this.connection = connection;
+	    this.destination = destination;
+	    this.id = id;
+	}
+    }
+
+    /**
+     * A frame waiting to be received: a message for a subscription, or a
+     * receipt when the subscription is null.
+     */
+    private static class Delivery {
+	final Subscription subscription;
+	final StompFrame frame;
+
+	Delivery(Subscription subscription, StompFrame frame) {
+	    this.subscription = subscription;
+	    this.frame = frame;
+	}
+    }
+
+    private final MemoryBroker broker;
+    private final LinkedList<Delivery> inbox = new LinkedList<Delivery>();
+    private final Map<AsciiBuffer, Subscription> subscriptions =
+	    new HashMap<AsciiBuffer, Subscription>();
+    private final StompFrame connected;
+    private final long connectedAt;
+    private long received;
+    private long nextId;
+    private long nextMessageId;
+    private volatile boolean closed;
+
+    MemoryConnection(MemoryBroker broker) {
+	this.broker = broker;
+	connected = new StompFrame(CONNECTED);
+	connected.addHeader(VERSION, StompFrame.encodeHeader("1.1"));
+	connected.addHeader(HeartBeatConnection.HEART_BEAT,
+		StompFrame.encodeHeader(broker.getHeartBeat() + ",0"));
+	connectedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a new id for a subscription or receipt.
+     *
+     * @return the id.
+     */
+    public AsciiBuffer nextId() {
+	broker.lock.lock();
+	try {
+	    return new AsciiBuffer(String.valueOf(++nextId));
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    public StompFrame connectedFrame() {
+	return connected;
+    }
+
+    /**
+     * Returns the number of frames and heart-beats received so far.
+     *
+     * @return the number received.
+     */
+    public long getReceivedCount() {
+	broker.lock.lock();
+	try {
+	    return closed ? received : received + broker.heartBeatsSince(connectedAt);
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    /**
+     * Sends a frame to the broker, blocking while its destination is full.
+     *
+     * @param frame the frame.
+     * @throws IOException if the connection is or gets closed, the frame is
+     *                     invalid or a failure was injected.
+     */
+    public void send(StompFrame frame) throws IOException {
+	if (closed) {
+	    throw new IOException("Connection to mem://" + broker.getName() + " is closed");
+	}
+	AsciiBuffer action = frame.action();
+	if (SEND.equals(action)) {
+	    broker.send(this, header(frame, DESTINATION), frame);
+	} else if (SUBSCRIBE.equals(action)) {
+	    Subscription subscription = new Subscription(this, header(frame, DESTINATION),
+		    frame.getHeader(ID));
+	    broker.lock.lock();
+	    try {
+		subscriptions.put(subscription.id, subscription);
+		broker.subscribe(subscription);
+	    } finally {
+		broker.lock.unlock();
+	    }
+	} else if (UNSUBSCRIBE.equals(action)) {
+	    broker.lock.lock();
+	    try {
+		Subscription subscription = subscriptions.remove(frame.getHeader(ID));
+		if (subscription != null) {
+		    broker.unsubscribe(subscription);
+		}
+	    } finally {
+		broker.lock.unlock();
+	    }
+	} else if (DISCONNECT.equals(action)) {
+	    sendReceipt(frame);
+	    close();
+	    return;
+	} else {
+	    throw new IOException("Unsupported frame " + action);
+	}
+	sendReceipt(frame);
+    }
+
+    /**
+     * Sends a frame with a receipt request and waits for the receipt.
+     *
+     * @param frame the frame.
+     * @return the RECEIPT frame.
+     * @throws IOException if the frame could not be sent.
+     */
+    public StompFrame request(StompFrame frame) throws IOException {
+	AsciiBuffer id = nextId();
+	frame.addHeader(RECEIPT_REQUESTED, id);
+	send(frame);
+	broker.lock.lock();
+	try {
+	    while (true) {
+		for (Iterator<Delivery> i = inbox.iterator(); i.hasNext();) {
+		    Delivery delivery = i.next();
+		    if (delivery.subscription == null
+			    && id.equals(delivery.frame.getHeader(RECEIPT_ID))) {
+			i.remove();
+			return delivery.frame;
+		    }
+		}
+		awaitChange();
+	    }
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    /**
+     * Waits for the next MESSAGE or RECEIPT frame.
+     *
+     * @return the frame.
+     * @throws IOException if the connection is closed.
+     */
+    public StompFrame receive() throws IOException {
+	broker.lock.lock();
+	try {
+	    while (inbox.isEmpty()) {
+		awaitChange();
+	    }
+	    return take();
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    /**
+     * Waits for the next MESSAGE or RECEIPT frame, up to the specified time.
+     *
+     * @param timeout the time to wait.
+     * @param unit the unit of the timeout.
+     * @return the frame, null if none arrived in time.
+     * @throws IOException if the connection is closed.
+     */
+    public StompFrame receive(long timeout, TimeUnit unit) throws IOException {
+	long deadline = System.nanoTime() + unit.toNanos(timeout);
+	broker.lock.lock();
+	try {
+	    while (inbox.isEmpty()) {
+		long remaining = deadline - System.nanoTime();
+		if (closed) {
+		    throw new IOException("Connection to mem://" + broker.getName() + " is closed");
+		}
+		if (remaining <= 0) {
+		    return null;
+		}
+		try {
+		    broker.changed.awaitNanos(remaining);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException("Interrupted receiving from mem://"
+			    + broker.getName());
+		}
+	    }
+	    return take();
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    /**
+     * Closes the connection. Messages not received yet go back to the broker.
+     */
+    public void close() {
+	broker.lock.lock();
+	try {
+	    if (closed) {
+		return;
+	    }
+	    // no more heart-beats
+	    received += broker.heartBeatsSince(connectedAt);
+	    closed = true;
+	    Map<String, List<StompFrame>> unreceived = new LinkedHashMap<String, List<StompFrame>>();
+	    for (Delivery delivery : inbox) {
+		if (delivery.subscription == null) {
+		    continue;
+		}
+		List<StompFrame> frames = unreceived.get(delivery.subscription.destination);
+		if (frames == null) {
+		    frames = new ArrayList<StompFrame>();
+		    unreceived.put(delivery.subscription.destination, frames);
+		}
+		frames.add(delivery.frame);
+	    }
+	    inbox.clear();
+	    for (Subscription subscription : subscriptions.values()) {
+		broker.unsubscribe(subscription);
+	    }
+	    subscriptions.clear();
+	    broker.disconnected(this, unreceived);
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    /**
+     * Returns whether the connection was closed, by the client or by
+     * {@link MemoryBroker#disconnectAll()}.
+     *
+     * @return true if closed.
+     */
+    public boolean isClosed() {
+	return closed;
+    }
+
+    /**
+     * Gives a message to a subscription if it has room. Called by the broker
+     * with the lock held.
+     */
+    boolean offer(Subscription subscription, StompFrame frame, int capacity) {
+	if (closed || subscription.pending >= capacity) {
+	    return false;
+	}
+	subscription.pending++;
+	received++;
+	inbox.add(new Delivery(subscription, frame));
+	return true;
+    }
+
+    /**
+     * Removes the first frame of the inbox, turning a sent frame into the
+     * MESSAGE frame the subscriber sees. Called with the lock held.
+     */
+    private StompFrame take() {
+	Delivery delivery = inbox.removeFirst();
+	if (delivery.subscription == null) {
+	    return delivery.frame;
+	}
+	Subscription subscription = delivery.subscription;
+	subscription.pending--;
+	StompFrame message = new StompFrame(MESSAGE);
+	for (Map.Entry<AsciiBuffer, AsciiBuffer> header : delivery.frame.headerMap().entrySet()) {
+	    if (!RECEIPT_REQUESTED.equals(header.getKey())) {
+		message.addHeader(header.getKey(), header.getValue());
+	    }
+	}
+	message.addHeader(SUBSCRIPTION, subscription.id);
+	message.addHeader(MESSAGE_ID, new AsciiBuffer(broker.getName() + "-" + (++nextMessageId)));
+	message.content(delivery.frame.content());
+	// room for another message
+	broker.dispatch(subscription.destination);
+	broker.changed.signalAll();
+	return message;
+    }
+
+    private void sendReceipt(StompFrame frame) {
+	AsciiBuffer id = frame.getHeader(RECEIPT_REQUESTED);
+	if (id == null) {
+	    return;
+	}
+	StompFrame receipt = new StompFrame(RECEIPT);
+	receipt.addHeader(RECEIPT_ID, id);
+	broker.lock.lock();
+	try {
+	    received++;
+	    inbox.add(new Delivery(null, receipt));
+	    broker.changed.signalAll();
+	} finally {
+	    broker.lock.unlock();
+	}
+    }
+
+    private void awaitChange() throws IOException {
+	if (closed) {
+	    throw new IOException("Connection to mem://" + broker.getName() + " is closed");
+	}
+	try {
+	    broker.changed.await();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted receiving from mem://"
+		    + broker.getName());
+	}
+    }
+
+    private static String header(StompFrame frame, AsciiBuffer name) throws IOException {
+	AsciiBuffer value = frame.getHeader(name);
+	if (value == null) {
+	    throw new IOException("Missing " + name + " header in " + frame.action() + " frame");
+	}
+	return value.toString();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.fusesource.stomp.codec.StompFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of frames waiting to be sent by a background thread, so the plugin
+ * does not block on the broker while writing output. Frames are sent through
+ * two lanes: the control lane, used by messages that must not wait behind
+ * buffered output (cancel, not needed), always goes first; everything else
+ * goes through the ordered lane in the order it was queued. Barrier frames
+ * (a waiting state) go through the control lane but only once the ordered
+ * frames queued before them have been sent, so they are delivered after the
+ * output that preceded them and before the output that follows, without
+ * waiting for room in the ordered lane.
+ * <p>
+ * The sending thread is a virtual thread in the {@link TaskThreads} virtual
+ * mode, and the queue is guarded by a {@link ReentrantLock} rather than a
+ * monitor so threads waiting on it don't pin their carrier thread.
+ */
+class OutboundQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+    /**
+     * Default maximum number of frames in the ordered lane before writers
+     * block.
+     */
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * The lane a frame is queued in.
+     */
+    enum Lane {
+	/** After every frame queued before it, blocking while the lane is full. */
+	ORDERED,
+	/** Before any queued ordered frame. */
+	CONTROL,
+	/** Through the control lane, after the ordered frames queued before it. */
+	BARRIER
+    }
+
+    /**
+     * A frame in the control lane, with the number of ordered frames that
+     * must have been taken for sending before it can go.
+     */
+    private static class ControlFrame {
+	final StompFrame frame;
+	final long after;
+
+	ControlFrame(StompFrame frame, long after) {
+	    this.frame = frame;
+	    this.after = after;
+	}
+    }
+
+    /**
+     * Sends a frame to the broker.
+     */
+    interface Sender {
+	void send(StompFrame frame) throws Exception;
+    }
+
+    private final LinkedList<ControlFrame> control = new LinkedList<ControlFrame>();
+    private final LinkedList<StompFrame> ordered = new LinkedList<StompFrame>();
+    private final Sender sender;
+    private final int capacity;
+    private final Thread thread;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long orderedTaken;
+    private boolean sending;
+    private boolean closed;
+
+    /**
+     * Creates a queue and starts its sending thread.
+     *
+     * @param name the name of the sending thread.
+     * @param sender the sender frames are delivered to.
+     * @param capacity the maximum number of frames in the ordered lane.
+     */
+    OutboundQueue(String name, Sender sender, int capacity) {
+	this.sender = sender;
+	this.capacity = capacity;
+	this.thread = TaskThreads.newThread(name, new Runnable() {
+	    public void run() {
+		drain();
+	    }
+	});
+	this.thread.start();
+    }
+
+    /**
+     * Queues a frame, blocking while the ordered lane is full. Control and
+     * barrier frames are never blocked.
+     *
+     * @param frame the frame.
+     * @param lane the lane to send it through.
+     * @throws InterruptedException if interrupted while waiting for room.
+     * @throws IllegalStateException if the queue is or gets closed.
+     */
+    void offer(StompFrame frame, Lane lane) throws InterruptedException {
+	lock.lock();
+	try {
+	    if (closed) {
+		throw new IllegalStateException("Outbound queue is closed");
+	    }
+	    if (lane == Lane.CONTROL) {
+		control.add(new ControlFrame(frame, 0));
+	    } else if (lane == Lane.BARRIER) {
+		control.add(new ControlFrame(frame, orderedTaken + ordered.size()));
+	    } else {
+		while (ordered.size() >= capacity && !closed) {
+		    changed.await();
+		}
+		if (closed) {
+		    // the sending thread is gone, the frame would be lost
+		    throw new IllegalStateException("Outbound queue is closed");
+		}
+		ordered.add(frame);
+	    }
+	    changed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Waits until every queued frame has been sent.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void flush() throws InterruptedException {
+	lock.lock();
+	try {
+	    while ((sending || !control.isEmpty() || !ordered.isEmpty())
+		    && thread.isAlive()) {
+		changed.await();
+	    }
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Sends every queued frame and stops the sending thread.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close() throws InterruptedException {
+	flush();
+	lock.lock();
+	try {
+	    closed = true;
+	    changed.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+	thread.join();
+    }
+
+    /**
+     * Returns the number of frames waiting to be sent.
+     *
+     * @return the number of frames queued.
+     */
+    int size() {
+	lock.lock();
+	try {
+	    return control.size() + ordered.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes the first control frame that can be sent now. Must be called
+     * with the lock held.
+     *
+     * @return the frame, null if there is none.
+     */
+    private StompFrame takeControl() {
+	for (Iterator<ControlFrame> i = control.iterator(); i.hasNext();) {
+	    ControlFrame queued = i.next();
+	    if (queued.after <= orderedTaken) {
+		i.remove();
+		return queued.frame;
+	    }
+	}
+	return null;
+    }
+
+    private void drain() {
+	try {
+	    sendQueued();
+	} finally {
+	    lock.lock();
+	    try {
+		sending = false;
+		closed = true;
+		changed.signalAll();
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+
+    private void sendQueued() {
+	while (true) {
+	    StompFrame frame;
+	    lock.lock();
+	    try {
+		sending = false;
+		changed.signalAll();
+		while (control.isEmpty() && ordered.isEmpty() && !closed) {
+		    try {
+			changed.await();
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		}
+		if (control.isEmpty() && ordered.isEmpty()) {
+		    return;
+		}
+		frame = takeControl();
+		if (frame == null) {
+		    // barriers only wait for queued ordered frames
+		    frame = ordered.removeFirst();
+		    orderedTaken++;
+		}
+		sending = true;
+		changed.signalAll();
+	    } finally {
+		lock.unlock();
+	    }
+	    try {
+		sender.send(frame);
+	    } catch (Exception e) {
+		logger.error("Error sending queued message", e);
+	    }
+	}
+    }
+}
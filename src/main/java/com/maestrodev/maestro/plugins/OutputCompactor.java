@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compacts output from tools that redraw a progress line with carriage
+ * returns (Maven downloads, rsync, docker pull) before it is sent to the
+ * server. Each redraw would otherwise become a frame the server stores
+ * forever; instead, only the latest state of a line being redrawn is kept and
+ * sent at most once per interval, and a line identical to the previous one
+ * within the window is dropped. Output without carriage returns passes
+ * through unchanged. A progress line held back when the tool goes quiet is
+ * sent by {@link #poll(long)}, which the worker calls once per interval while
+ * a task runs, so the server does not show a stale state until the next
+ * write.
+ * <p>
+ * Set it on a worker with {@link MaestroWorker#setOutputCompactor(OutputCompactor)}.
+ */
+public class OutputCompactor {
+
+    /**
+     * Default minimum time between two progress updates, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Default time during which identical consecutive lines are dropped, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 5000;
+
+    private final long interval;
+    private final long window;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final StringBuilder line = new StringBuilder();
+    private boolean rewriting;
+    private boolean pendingReturn;
+    private boolean midLine;
+    private boolean held;
+    private String lastLine;
+    private long lastLineTime;
+    private long lastProgressTime = Long.MIN_VALUE / 2;
+
+    /**
+     * Creates a compactor with the default interval and window.
+     */
+    public OutputCompactor() {
+	this(DEFAULT_INTERVAL, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a compactor.
+     *
+     * @param interval minimum time between two progress updates, in
+     *                 milliseconds.
+     * @param window time during which identical consecutive lines are
+     *               dropped, in milliseconds; 0 to keep them all.
+     */
+    public OutputCompactor(long interval, long window) {
+	this.interval = interval;
+	this.window = window;
+    }
+
+    /**
+     * Processes a chunk of output.
+     *
+     * @param output the output written by the plugin.
+     * @param now the current time in milliseconds.
+     * @return the output to send now, empty if there is nothing to send.
+     */
+    public String process(String output, long now) {
+	lock.lock();
+	try {
+	    StringBuilder out = new StringBuilder();
+	    for (int i = 0; i < output.length(); i++) {
+		char c = output.charAt(i);
+		if (pendingReturn) {
+		    pendingReturn = false;
+		    if (c != '\n') {
+			// a redraw: forget the previous state of the line
+			line.setLength(0);
+			rewriting = true;
+			if (midLine) {
+			    // part of the line was already sent as written
+			    out.append('\r');
+			    midLine = false;
+			}
+		    }
+		}
+		if (c == '\r') {
+		    pendingReturn = true;
+		} else if (c == '\n') {
+		    endLine(out, now);
+		} else {
+		    line.append(c);
+		}
+	    }
+
+	    held = false;
+	    if (line.length() > 0 || pendingReturn) {
+		if (rewriting || pendingReturn) {
+		    // progress line, send its latest state at a bounded rate
+		    if (now - lastProgressTime >= interval && line.length() > 0) {
+			out.append(line).append('\r');
+			lastProgressTime = now;
+		    } else {
+			held = line.length() > 0;
+		    }
+		} else {
+		    // plain partial line, don't hold it back
+		    out.append(line);
+		    line.setLength(0);
+		    midLine = true;
+		}
+	    }
+	    return out.toString();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the latest state of a progress line that was held back, if the
+     * interval has passed since the last progress update was sent.
+     *
+     * @param now the current time in milliseconds.
+     * @return the output to send now, empty if there is nothing to send.
+     */
+    public String poll(long now) {
+	lock.lock();
+	try {
+	    if (!held || now - lastProgressTime < interval) {
+		return "";
+	    }
+	    held = false;
+	    lastProgressTime = now;
+	    return line.toString() + '\r';
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the minimum time between two progress updates.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getInterval() {
+	return interval;
+    }
+
+    /**
+     * Returns whatever is held back, to be sent when the plugin finishes.
+     *
+     * @return the pending output, empty if there is none.
+     */
+    public String flush() {
+	lock.lock();
+	try {
+	    String pending = line.toString();
+	    line.setLength(0);
+	    rewriting = false;
+	    pendingReturn = false;
+	    midLine = false;
+	    held = false;
+	    lastLine = null;
+	    lastLineTime = 0;
+	    lastProgressTime = Long.MIN_VALUE / 2;
+	    return pending;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void endLine(StringBuilder out, long now) {
+	String completed = line.toString();
+	line.setLength(0);
+	boolean duplicate = !midLine && window > 0 && completed.equals(lastLine)
+		&& now - lastLineTime < window;
+	if (!duplicate) {
+	    out.append(completed).append('\n');
+	    lastLine = midLine ? null : completed;
+	}
+	lastLineTime = now;
+	rewriting = false;
+	midLine = false;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+/**
+ * Calls the plugin methods of a {@link MaestroWorker} subclass directly,
+ * without reflection. Implementations are generated at build time by the
+ * {@link DispatcherProcessor} for every worker class compiled with this
+ * library on the classpath, and are picked up by
+ * {@link MaestroWorker#perform(String, Map)}; methods they don't know about
+ * are still looked up with reflection.
+ */
+public interface PluginDispatcher {
+
+    /**
+     * Returns whether the worker class has the specified plugin method.
+     *
+     * @param methodName the method name.
+     * @return true if {@link #invoke(MaestroWorker, String)} can call it.
+     */
+    boolean hasMethod(String methodName);
+
+    /**
+     * Returns the input fields of a {@link Memoize} plugin method.
+     *
+     * @param methodName the method name.
+     * @return the {@link Memoize#value()} of the method, null if it is not
+     *         memoized.
+     */
+    String[] getMemoizedFields(String methodName);
+
+    /**
+     * Calls the specified plugin method.
+     *
+     * @param worker the worker, an instance of the class this dispatcher was
+     *               generated for.
+     * @param methodName the method name.
+     * @throws InvocationTargetException wrapping whatever the method threw,
+     *                                   as {@link java.lang.reflect.Method#invoke(Object, Object...)}
+     *                                   would.
+     * @throws IllegalArgumentException if there is no such plugin method.
+     */
+    void invoke(MaestroWorker worker, String methodName)
+	    throws InvocationTargetException;
+}
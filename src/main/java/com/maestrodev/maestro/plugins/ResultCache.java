@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+
+/**
+ * Size-bounded LRU cache of the results of {@link Memoize} plugin methods,
+ * kept in memory and optionally on disk so results survive agent restarts.
+ * Results are stored as JSON, so a restored result never shares objects with
+ * the work item it was taken from.
+ * <p>
+ * The shared instance is configured with the {@code maestro.cache.size}
+ * (default 1000 entries) and {@code maestro.cache.dir} (no disk tier by
+ * default) system properties.
+ */
+public class ResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+    /**
+     * Default maximum number of entries in each tier.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final ResultCache theInstance = new ResultCache(
+	    Integer.getInteger("maestro.cache.size", DEFAULT_MAX_ENTRIES),
+	    System.getProperty("maestro.cache.dir") == null ? null
+		    : new File(System.getProperty("maestro.cache.dir")));
+
+    private final int maxEntries;
+    private final File directory;
+    private final Map<String, String> memory;
+    /** Not a monitor, so a virtual thread pruning the directory isn't pinned. */
+    private final ReentrantLock diskLock = new ReentrantLock();
+    /** Files in the disk tier, counted on the first write; guarded by diskLock. */
+    private int diskEntries = -1;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the shared instance.
+     * 
+     * @return the shared instance.
+     */
+    public static ResultCache getInstance() {
+	return theInstance;
+    }
+
+    /**
+     * Creates a cache.
+     * 
+     * @param maxEntries maximum number of entries in each tier.
+     * @param directory directory of the disk tier, null for memory only.
+     */
+    public ResultCache(final int maxEntries, File directory) {
+	this.maxEntries = maxEntries;
+	this.directory = directory;
+	this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+		return size() > maxEntries;
+	    }
+	};
+    }
+
+    /**
+     * Returns the cached result for the specified key, counting a hit or a
+     * miss.
+     * 
+     * @param key the cache key.
+     * @return the cached fields, null on a miss.
+     */
+    public Map<String, Object> get(String key) {
+	String json;
+	synchronized (memory) {
+	    json = memory.get(key);
+	}
+	if (json == null && directory != null) {
+	    json = readFromDisk(key);
+	    if (json != null) {
+		synchronized (memory) {
+		    memory.put(key, json);
+		}
+	    }
+	}
+	if (json == null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	try {
+	    Map<String, Object> result = JSON.std.mapFrom(json);
+	    hits.incrementAndGet();
+	    return result;
+	} catch (IOException e) {
+	    logger.warn("Discarding unreadable cached result " + key, e);
+	    misses.incrementAndGet();
+	    return null;
+	}
+    }
+
+    /**
+     * Caches a result.
+     * 
+     * @param key the cache key.
+     * @param fields the fields to restore on a hit.
+     */
+    public void put(String key, Map<String, Object> fields) {
+	String json;
+	try {
+	    json = JSON.std.asString(fields);
+	} catch (IOException e) {
+	    logger.warn("Not caching result " + key + ", it can't be serialized", e);
+	    return;
+	}
+	synchronized (memory) {
+	    memory.put(key, json);
+	}
+	if (directory != null) {
+	    writeToDisk(key, json);
+	}
+    }
+
+    /**
+     * Returns the number of lookups that found a result.
+     * 
+     * @return the number of hits.
+     */
+    public long getHits() {
+	return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that found nothing.
+     * 
+     * @return the number of misses.
+     */
+    public long getMisses() {
+	return misses.get();
+    }
+
+    /**
+     * Returns the number of entries in memory.
+     * 
+     * @return the number of entries.
+     */
+    public int size() {
+	synchronized (memory) {
+	    return memory.size();
+	}
+    }
+
+    private File file(String key) {
+	return new File(directory, sha256(key) + ".json");
+    }
+
+    private String readFromDisk(String key) {
+	File file = file(key);
+	if (!file.isFile()) {
+	    return null;
+	}
+	try {
+	    String json = FileUtils.readFileToString(file, "UTF-8");
+	    // keep recently used entries from being pruned
+	    file.setLastModified(System.currentTimeMillis());
+	    return json;
+	} catch (IOException e) {
+	    logger.warn("Error reading cached result " + file, e);
+	    return null;
+	}
+    }
+
+    /**
+     * Writes a result to the disk tier. The number of files is tracked in
+     * memory, and once it goes over the limit the least recently used tenth
+     * are deleted at once, so the directory is only listed every
+     * {@code maxEntries / 10} new entries rather than on every write.
+     */
+    private void writeToDisk(String key, String json) {
+	File file = file(key);
+	boolean existed = file.isFile();
+	try {
+	    FileUtils.writeStringToFile(file, json, "UTF-8");
+	} catch (IOException e) {
+	    logger.warn("Error writing cached result " + file, e);
+	    return;
+	}
+	diskLock.lock();
+	try {
+	    if (diskEntries < 0) {
+		File[] files = directory.listFiles();
+		diskEntries = files == null ? 0 : files.length;
+	    } else if (!existed) {
+		diskEntries++;
+	    }
+	    if (diskEntries > maxEntries) {
+		diskEntries = prune(maxEntries - maxEntries / 10);
+	    }
+	} finally {
+	    diskLock.unlock();
+	}
+    }
+
+    /**
+     * Deletes the least recently used files of the disk tier.
+     * 
+     * @param keep the number of files to keep.
+     * @return the number of files left.
+     */
+    private int prune(int keep) {
+	File[] files = directory.listFiles();
+	if (files == null) {
+	    return 0;
+	}
+	if (files.length <= keep) {
+	    return files.length;
+	}
+	Arrays.sort(files, new Comparator<File>() {
+	    public int compare(File a, File b) {
+		return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+	    }
+	});
+	int left = files.length;
+	for (int i = 0; i < files.length - keep; i++) {
+	    if (files[i].delete()) {
+		left--;
+	    }
+	}
+	return left;
+    }
+
+    private static String sha256(String key) {
+	try {
+	    byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+	    StringBuilder hex = new StringBuilder(digest.length * 2);
+	    for (byte b : digest) {
+		hex.append(String.format("%02x", b));
+	    }
+	    return hex.toString();
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+}
@@ -4,17 +4,90 @@
 package com.maestrodev.maestro.plugins;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.client.Callback;
+import org.fusesource.stomp.client.CallbackConnection;
+import org.fusesource.stomp.client.Constants;
+import org.fusesource.stomp.client.Promise;
 import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.codec.StompFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 /**
  * A stomp connection factory. Used to obtained connections to the stomp server.
+ * <p>
+ * Connections handed out by {@link #acquire(String)} are kept open across
+ * sends. They negotiate STOMP 1.1 heart-beats with the server and are watched
+ * by a background thread that marks them dead when nothing, not even a
+ * heart-beat, has been received from the server for longer than the
+ * heart-beat window allows, or a send blocks for that long; dead connections
+ * are replaced on the next {@link #acquire(String)}.
+ * <p>
+ * Connecting is guarded by a {@link ReentrantLock} rather than a monitor, so
+ * tasks running on virtual threads (see {@link TaskThreads}) don't pin their
+ * carrier thread while another one waits for the broker.
+ * <p>
+ * {@code mem://<name>} urls connect to the in-process {@link MemoryBroker} of
+ * that name instead of the network, for tests and benchmarks.
  */
 public class StompConnectionFactory {
 
-    private static StompConnectionFactory theInstance;
+    private static final Logger logger = LoggerFactory.getLogger(StompConnectionFactory.class);
+
+    private static final ExecutionEvents events = ExecutionEvents.get();
+
+    /**
+     * Default heart-beat interval in milliseconds.
+     */
+    public static final long DEFAULT_HEART_BEAT = 10000;
+
+    /**
+     * Number of missed heart-beat intervals after which a connection is dead.
+     */
+    private static final int HEART_BEAT_GRACE = 2;
+
+    /**
+     * Number of TLS sessions kept for resumption.
+     */
+    private static final int SSL_SESSION_CACHE_SIZE = 100;
+
+    /**
+     * Time TLS sessions are kept for resumption, in seconds.
+     */
+    private static final int SSL_SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static volatile StompConnectionFactory theInstance;
+
+    private final ConcurrentMap<String, HeartBeatConnection> connections =
+	    new ConcurrentHashMap<String, HeartBeatConnection>();
+
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private volatile long heartBeat = DEFAULT_HEART_BEAT;
+
+    /** Guarded by connectLock. */
+    private ScheduledExecutorService heartBeatChecker;
+
+    private final ReentrantLock sslLock = new ReentrantLock();
+
+    /** Guarded by sslLock. */
+    private SSLContext sslContext;
 
     /**
      * Returns the StompConnectionFactory singleton instance.
@@ -45,6 +118,7 @@ public class StompConnectionFactory {
 	    throws IOException, URISyntaxException {
 
 	Stomp stomp = new Stomp(host, port);
+	configureHeartBeat(stomp);
 	BlockingConnection connection = stomp.connectBlocking();
 
 	return connection;
@@ -61,12 +135,47 @@ public class StompConnectionFactory {
     public BlockingConnection getConnection(String uri)
 	    throws IOException, URISyntaxException {
 
+	Stomp stomp = createStomp(uri);
+
+        // TODO: extract user/pass from URI and set on Stomp class
+
+	BlockingConnection connection = stomp.connectBlocking();
+
+	return connection;
+    }
+
+    private Stomp createStomp(String uri) throws IOException,
+	    URISyntaxException {
+	URI transportUri = toTransportUri(uri);
+
+	Stomp stomp = new Stomp(transportUri.toString());
+	if (isSsl(transportUri)) {
+	    stomp.setSslContext(getSslContext());
+	}
+	configureHeartBeat(stomp);
+	return stomp;
+    }
+
+    /**
+     * Converts a stomp URI into the URI of the transport to connect to:
+     * {@code stomp} becomes {@code tcp}, {@code stomp+ssl}, {@code stomp+tls}
+     * and {@code tls} become {@code ssl}, and the port defaults to 61613.
+     * 
+     * @param uri the stomp URI.
+     * @return the transport URI.
+     * @throws URISyntaxException if the URI is invalid or has no host.
+     */
+    static URI toTransportUri(String uri) throws URISyntaxException {
         URI u = new URI(uri);
 
         String scheme = u.getScheme();
+        if (scheme == null || u.getHost() == null) {
+            throw new URISyntaxException(uri, "Missing scheme or host");
+        }
         if (scheme.equals("stomp")) {
           scheme = "tcp";
-        } else if (uri.equals("stomp+ssl")) {
+        } else if (scheme.equals("stomp+ssl") || scheme.equals("stomp+tls")
+        	|| scheme.equals("tls")) {
           scheme = "ssl";
         }
 
@@ -75,12 +184,323 @@ public class StompConnectionFactory {
           port = u.getPort();
         }
 
-	Stomp stomp = new Stomp(scheme + "://" + u.getHost() + ":" + port);
+	return new URI(scheme + "://" + u.getHost() + ":" + port);
+    }
 
-        // TODO: extract user/pass from URI and set on Stomp class
+    private static boolean isSsl(URI transportUri) {
+	return "ssl".equals(transportUri.getScheme());
+    }
 
-	BlockingConnection connection = stomp.connectBlocking();
+    /**
+     * Returns the SSLContext used for {@code stomp+ssl} connections. The same
+     * context is used for every connection, so its client session cache lets
+     * reconnects resume the TLS session instead of doing a full handshake.
+     * Defaults to a context of this factory's own with the JVM default trust
+     * store, so tuning its session cache doesn't affect the rest of the JVM;
+     * set a context to use a client certificate.
+     * 
+     * @return the SSLContext.
+     * @throws IOException if no TLS context is available.
+     */
+    public SSLContext getSslContext() throws IOException {
+	// called on every reconnect, a monitor would pin a virtual sender
+	sslLock.lock();
+	try {
+	    if (sslContext == null) {
+		try {
+		    SSLContext context = SSLContext.getInstance("TLS");
+		    context.init(null, null, null);
+		    setSslContext(context);
+		} catch (GeneralSecurityException e) {
+		    throw new IOException("No TLS SSLContext available: " + e.getMessage());
+		}
+	    }
+	    return sslContext;
+	} finally {
+	    sslLock.unlock();
+	}
+    }
 
-	return connection;
+    /**
+     * Sets the SSLContext used for {@code stomp+ssl} connections, for instance
+     * one trusting the broker's certificate or holding a client certificate,
+     * and configures its client session cache.
+     * 
+     * @param sslContext the SSLContext.
+     */
+    public void setSslContext(SSLContext sslContext) {
+	sslLock.lock();
+	try {
+	    SSLSessionContext sessions = sslContext.getClientSessionContext();
+	    if (sessions != null) {
+		sessions.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+		sessions.setSessionTimeout(SSL_SESSION_TIMEOUT);
+	    }
+	    this.sslContext = sslContext;
+	} finally {
+	    sslLock.unlock();
+	}
+    }
+
+    /**
+     * Returns an open connection to the specified URI, reusing the one from a
+     * previous call unless it has been marked dead, in which case it is
+     * closed and replaced.
+     * 
+     * @param uri the stomp URI to connect to.
+     * @return a long-lived stomp connection.
+     * @throws IOException if a connection could not be made.
+     * @throws URISyntaxException if the host or port are missing or invalid.
+     */
+    HeartBeatConnection acquire(String uri) throws IOException,
+	    URISyntaxException {
+	Object event = events.beginConnect();
+	HeartBeatConnection connection = connections.get(uri);
+	if (connection != null && !connection.isDead()) {
+	    events.commitConnect(event, uri, true);
+	    return connection;
+	}
+	connectLock.lock();
+	try {
+	    connection = connections.get(uri);
+	    if (connection != null) {
+		if (!connection.isDead()) {
+		    events.commitConnect(event, uri, true);
+		    return connection;
+		}
+		discard(connection);
+	    }
+	    connection = new HeartBeatConnection(uri, open(uri), heartBeat);
+	    connections.put(uri, connection);
+	    if (connection.getInterval() > 0) {
+		startHeartBeatChecker();
+	    }
+	    logger.debug("Opened stomp connection to {}, heart-beat {}ms", uri,
+		    connection.getInterval());
+	    events.commitConnect(event, uri, false);
+	    return connection;
+	} finally {
+	    connectLock.unlock();
+	}
+    }
+
+    /**
+     * Opens a connection to a {@link MemoryBroker} for {@code mem://} urls,
+     * or to the network otherwise.
+     * 
+     * @param uri the stomp URI to connect to.
+     * @return the connection.
+     * @throws IOException if a connection could not be made.
+     * @throws URISyntaxException if the host or port are missing or invalid.
+     */
+    private FrameConnection open(final String uri) throws IOException,
+	    URISyntaxException {
+	if (MemoryBroker.isMemoryUri(uri)) {
+	    return MemoryBroker.forUri(uri).connect();
+	}
+	final Promise<CallbackConnection> connected = new Promise<CallbackConnection>();
+	createStomp(uri).connectCallback(new Callback<CallbackConnection>() {
+	    @Override
+	    public void onSuccess(CallbackConnection connection) {
+		connection.receive(new Receiver(uri));
+		connection.resume();
+		connected.onSuccess(connection);
+	    }
+
+	    @Override
+	    public void onFailure(Throwable failure) {
+		connected.onFailure(failure);
+	    }
+	});
+	return new NetworkConnection(uri, await(connected, uri));
+    }
+
+    /**
+     * Waits for a callback of the stomp client.
+     * 
+     * @param promise the callback.
+     * @param uri the stomp URI, for error messages.
+     * @return the value passed to the callback.
+     * @throws IOException if the callback failed or the wait was interrupted.
+     */
+    private static <T> T await(Promise<T> promise, String uri) throws IOException {
+	try {
+	    return promise.await();
+	} catch (IOException e) {
+	    throw e;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted talking to " + uri);
+	} catch (Exception e) {
+	    throw new IOException("Error talking to " + uri + ": " + e.getMessage(), e);
+	}
+    }
+
+    /**
+     * Handles the frames the server sends on a connection that only sends:
+     * receipts are ignored and errors logged.
+     */
+    private static class Receiver extends Callback<StompFrame> {
+	private final String uri;
+
+	Receiver(String uri) {
+	    this.uri = uri;
+	}
+
+	@Override
+	public void onSuccess(StompFrame frame) {
+	    if (Constants.ERROR.equals(frame.action())) {
+		logger.warn("Error from stomp server {}: {}", uri, frame.errorMessage());
+	    }
+	}
+
+	@Override
+	public void onFailure(Throwable failure) {
+	    logger.debug("Stomp connection to {} failed: {}", uri, failure.toString());
+	}
+    }
+
+    /**
+     * A connection to a network broker. It is built on the callback client
+     * rather than a {@link BlockingConnection}, which hides its transport, so
+     * the bytes read, heart-beats included, can be polled.
+     */
+    private static class NetworkConnection implements FrameConnection {
+	private final String uri;
+	private final CallbackConnection connection;
+
+	NetworkConnection(String uri, CallbackConnection connection) {
+	    this.uri = uri;
+	    this.connection = connection;
+	}
+
+	public void send(final StompFrame frame) throws IOException {
+	    final Promise<Void> sent = new Promise<Void>();
+	    connection.getDispatchQueue().execute(new Runnable() {
+		public void run() {
+		    connection.send(frame, sent);
+		}
+	    });
+	    await(sent, uri);
+	}
+
+	public StompFrame connectedFrame() {
+	    return connection.connectedFrame();
+	}
+
+	/**
+	 * Returns the number of bytes read by the transport. It is updated by
+	 * the dispatch thread and read here without synchronization; a stale
+	 * value only delays the detection of a dead connection by one check.
+	 */
+	public long getReceivedCount() {
+	    return connection.transport().getProtocolCodec().getReadCounter();
+	}
+
+	public void close() {
+	    connection.getDispatchQueue().execute(new Runnable() {
+		public void run() {
+		    connection.close(null);
+		}
+	    });
+	}
+    }
+
+    /**
+     * Closes the specified connection and removes it from the cache so the
+     * next {@link #acquire(String)} opens a new one.
+     * 
+     * @param connection the connection to discard.
+     */
+    void discard(HeartBeatConnection connection) {
+	connections.remove(connection.getUri(), connection);
+	connection.close();
+    }
+
+    /**
+     * Closes all the connections kept open by this factory.
+     */
+    public void closeConnections() {
+	for (HeartBeatConnection connection : connections.values()) {
+	    discard(connection);
+	}
+    }
+
+    /**
+     * Returns the heart-beat interval requested from the server.
+     * 
+     * @return the interval in milliseconds, 0 if disabled.
+     */
+    public long getHeartBeat() {
+	return heartBeat;
+    }
+
+    /**
+     * Sets the heart-beat interval requested from the server for new
+     * connections. Use 0 to disable heart-beating and dead-connection
+     * detection.
+     * 
+     * @param heartBeat the interval in milliseconds.
+     */
+    public void setHeartBeat(long heartBeat) {
+	this.heartBeat = heartBeat;
+    }
+
+    /**
+     * Requests STOMP 1.1 and heart-beats from the server. We do not promise to
+     * send heart-beats ourselves, as the client has no way to write a bare
+     * EOL; the server's heart-beats keep idle connections warm through NAT,
+     * and their absence is what tells us the socket is gone.
+     * 
+     * @param stomp the stomp client to configure.
+     */
+    private void configureHeartBeat(Stomp stomp) {
+	stomp.setVersion("1.1");
+	if (heartBeat > 0) {
+	    Properties headers = new Properties();
+	    headers.put("heart-beat", "0," + heartBeat);
+	    stomp.setCustomHeaders(headers);
+	}
+    }
+
+    /**
+     * Checks every open connection for missed heart-beats.
+     */
+    void checkHeartBeats() {
+	long now = System.currentTimeMillis();
+	for (HeartBeatConnection connection : connections.values()) {
+	    if (connection.checkHeartBeat(now, HEART_BEAT_GRACE)) {
+		logger.warn("Stomp connection to {} missed its heart-beats, marking it dead",
+			connection.getUri());
+		connections.remove(connection.getUri(), connection);
+	    }
+	}
+    }
+
+    /**
+     * Starts the heart-beat checker, if it is not running. Called with the
+     * connect lock held.
+     */
+    private void startHeartBeatChecker() {
+	if (heartBeatChecker != null) {
+	    return;
+	}
+	heartBeatChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "maestro-stomp-heartbeat");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	long period = Math.max(heartBeat / 2, 100);
+	heartBeatChecker.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		try {
+		    checkHeartBeats();
+		} catch (RuntimeException e) {
+		    logger.error("Error checking stomp heart-beats", e);
+		}
+	    }
+	}, period, period, TimeUnit.MILLISECONDS);
     }
 }
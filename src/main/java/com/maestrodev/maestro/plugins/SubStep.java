@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.util.Map;
+
+/**
+ * An independent step of a plugin task, such as deploying to one of several
+ * hosts, that can run concurrently with the other steps of the task through
+ * {@link MaestroWorker#runSubSteps(Map)}.
+ */
+public interface SubStep {
+
+    /**
+     * Runs the step. Output, fields and errors must be reported through the
+     * context, not the worker, as the worker is shared with the other steps.
+     * 
+     * @param context the context of this step.
+     * @throws Exception if the step failed, the error is reported as the
+     *                   step's error.
+     */
+    void run(SubStepContext context) throws Exception;
+}
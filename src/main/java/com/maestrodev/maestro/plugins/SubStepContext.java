@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The context a {@link SubStep} runs in. Output written through the context
+ * is tagged with the step name and streamed through the worker as it is
+ * written; fields and the error are kept apart and merged into the work item
+ * once all the steps have finished. The work item fields are read from a copy
+ * taken before the steps started, so steps never read the work item while
+ * another step's output is being encoded.
+ */
+public class SubStepContext {
+
+    private final MaestroWorker worker;
+    private final String name;
+    private final Map<String, Object> workitemFields;
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    private volatile String error;
+
+    SubStepContext(MaestroWorker worker, String name,
+	    Map<String, Object> workitemFields) {
+	this.worker = worker;
+	this.name = name;
+	this.workitemFields = workitemFields;
+    }
+
+    /**
+     * Returns the step name.
+     * 
+     * @return the step name.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Writes output, prefixing every line with the step name.
+     * 
+     * @param output the output.
+     */
+    public void writeOutput(String output) {
+	String prefix = "[" + name + "] ";
+	StringBuilder tagged = new StringBuilder(output.length() + prefix.length());
+	boolean lineStart = true;
+	for (int i = 0; i < output.length(); i++) {
+	    char c = output.charAt(i);
+	    if (lineStart) {
+		tagged.append(prefix);
+		lineStart = false;
+	    }
+	    tagged.append(c);
+	    if (c == '\n') {
+		lineStart = true;
+	    }
+	}
+	worker.writeOutput(tagged.toString());
+    }
+
+    /**
+     * Returns a field set by this step, or else the work item field as it was
+     * when the steps started.
+     * 
+     * @param field the field name.
+     * @return the field value.
+     */
+    public String getField(String field) {
+	Object value;
+	synchronized (fields) {
+	    value = fields.get(field);
+	}
+	if (value == null) {
+	    value = workitemFields.get(field);
+	}
+	return value == null ? null : value.toString();
+    }
+
+    /**
+     * Sets a field to be merged into the work item when all the steps have
+     * finished.
+     * 
+     * @param name the field name.
+     * @param value the field value.
+     */
+    public void setField(String name, Object value) {
+	synchronized (fields) {
+	    fields.put(name, value);
+	}
+    }
+
+    /**
+     * Sets the step error.
+     * 
+     * @param error the error message.
+     */
+    public void setError(String error) {
+	this.error = error;
+    }
+
+    /**
+     * Returns the step error.
+     * 
+     * @return the error message, null if the step did not fail.
+     */
+    public String getError() {
+	return error;
+    }
+
+    Map<String, Object> getFields() {
+	synchronized (fields) {
+	    return new LinkedHashMap<String, Object>(fields);
+	}
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads tasks and their background senders run on. Most plugins
+ * spend their time blocked on HTTP calls, processes and the broker, so when
+ * the {@code maestro.threads} system property is {@code virtual} and the JVM
+ * supports virtual threads (JDK 21 or later) they run on virtual threads.
+ * Otherwise, or when the property is {@code platform}, daemon platform
+ * threads are used.
+ * <p>
+ * Virtual threads are looked up reflectively, as this library is still built
+ * for older JVMs.
+ */
+public final class TaskThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskThreads.class);
+
+    /**
+     * System property selecting the thread mode, {@code platform} or
+     * {@code virtual}.
+     */
+    public static final String MODE_PROPERTY = "maestro.threads";
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = lookup(Executors.class,
+	    "newVirtualThreadPerTaskExecutor");
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+
+    private static final boolean VIRTUAL = "virtual".equalsIgnoreCase(
+	    System.getProperty(MODE_PROPERTY)) && checkVirtualAvailable();
+
+    private TaskThreads() {
+    }
+
+    private static Method lookup(Class<?> clazz, String name) {
+	try {
+	    return clazz.getMethod(name);
+	} catch (NoSuchMethodException e) {
+	    return null;
+	}
+    }
+
+    private static boolean checkVirtualAvailable() {
+	if (!isVirtualAvailable()) {
+	    logger.warn("Virtual threads requested with -D{}=virtual but not "
+		    + "supported by this JVM, using platform threads", MODE_PROPERTY);
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Returns whether this JVM supports virtual threads.
+     *
+     * @return true if virtual threads are available.
+     */
+    public static boolean isVirtualAvailable() {
+	return NEW_VIRTUAL_EXECUTOR != null && OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns whether tasks run on virtual threads.
+     *
+     * @return true if the virtual thread mode is enabled and supported.
+     */
+    public static boolean isVirtual() {
+	return VIRTUAL;
+    }
+
+    /**
+     * Returns an executor running each task on its own thread, virtual or
+     * platform depending on the configured mode.
+     *
+     * @param name the prefix of the platform thread names.
+     * @return a new executor.
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+	return newTaskExecutor(name, VIRTUAL);
+    }
+
+    /**
+     * Returns an executor running each task on its own thread.
+     *
+     * @param name the prefix of the platform thread names.
+     * @param virtual true to use virtual threads; ignored if the JVM does not
+     *                support them.
+     * @return a new executor.
+     */
+    public static ExecutorService newTaskExecutor(final String name,
+	    boolean virtual) {
+	if (virtual && isVirtualAvailable()) {
+	    try {
+		return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+	    } catch (Exception e) {
+		logger.warn("Error creating virtual thread executor, using platform threads", e);
+	    }
+	}
+	final AtomicInteger count = new AtomicInteger();
+	return Executors.newCachedThreadPool(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+    }
+
+    /**
+     * Creates an unstarted thread, virtual or platform depending on the
+     * configured mode. Platform threads are daemon threads; virtual threads
+     * always are.
+     *
+     * @param name the thread name.
+     * @param task the task the thread runs.
+     * @return the thread, not started.
+     */
+    public static Thread newThread(String name, Runnable task) {
+	if (VIRTUAL) {
+	    try {
+		Object builder = OF_VIRTUAL.invoke(null);
+		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+		builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+		return (Thread) builderClass.getMethod("unstarted", Runnable.class)
+			.invoke(builder, task);
+	    } catch (Exception e) {
+		logger.warn("Error creating virtual thread, using a platform thread", e);
+	    }
+	}
+	Thread t = new Thread(task, name);
+	t.setDaemon(true);
+	return t;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+
+/**
+ * A timeline of the steps of a single task run, kept in a fixed size ring
+ * buffer so a long running task only keeps its most recent spans. The
+ * timeline can be exported in the Chrome trace event format, which can be
+ * opened in {@code chrome://tracing} or Perfetto.
+ * <p>
+ * Tracing is off unless the {@code maestro.trace.dir} system property is set,
+ * in which case every {@link MaestroWorker#perform(String, Map)} writes its
+ * trace to that directory, or a trace is set with
+ * {@link MaestroWorker#setTrace(TaskTrace)}.
+ * <p>
+ * Spans are recorded while sending, so the buffer is guarded by a
+ * {@link ReentrantLock} rather than a monitor, which would pin a virtual
+ * thread to its carrier.
+ */
+public class TaskTrace {
+
+    /**
+     * Directory traces are written to, null if tracing is disabled.
+     */
+    static final String TRACE_DIR = System.getProperty("maestro.trace.dir");
+
+    /**
+     * Default number of spans kept.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final long origin = System.nanoTime();
+    private final String[] names;
+    private final long[] starts;
+    private final long[] durations;
+    private final long[] threads;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int next;
+    private long count;
+
+    /**
+     * Creates a trace that keeps the default number of spans.
+     */
+    public TaskTrace() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a trace that keeps the specified number of spans.
+     *
+     * @param capacity the number of spans kept.
+     */
+    public TaskTrace(int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("capacity must be positive: " + capacity);
+	}
+	names = new String[capacity];
+	starts = new long[capacity];
+	durations = new long[capacity];
+	threads = new long[capacity];
+    }
+
+    /**
+     * Records a span that started at the specified time and ends now.
+     *
+     * @param name the span name.
+     * @param start the start time, from {@link System#nanoTime()}.
+     */
+    public void record(String name, long start) {
+	long end = System.nanoTime();
+	long thread = Thread.currentThread().getId();
+	lock.lock();
+	try {
+	    names[next] = name;
+	    starts[next] = start;
+	    durations[next] = end - start;
+	    threads[next] = thread;
+	    next = (next + 1) % names.length;
+	    count++;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the number of spans recorded, including those that were
+     * overwritten.
+     *
+     * @return the number of spans recorded.
+     */
+    public long getCount() {
+	lock.lock();
+	try {
+	    return count;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the kept spans, oldest first, as Chrome trace events.
+     *
+     * @return the trace events.
+     */
+    public List<Map<String, Object>> getEvents() {
+	lock.lock();
+	try {
+	    int size = (int) Math.min(count, names.length);
+	    int first = count > names.length ? next : 0;
+	    List<Map<String, Object>> events = new ArrayList<Map<String, Object>>(size);
+	    for (int i = 0; i < size; i++) {
+		int j = (first + i) % names.length;
+		Map<String, Object> event = new HashMap<String, Object>();
+		event.put("name", names[j]);
+		event.put("cat", "maestro");
+		event.put("ph", "X");
+		event.put("ts", (starts[j] - origin) / 1000.0);
+		event.put("dur", durations[j] / 1000.0);
+		event.put("pid", 1);
+		event.put("tid", threads[j]);
+		events.add(event);
+	    }
+	    return events;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the trace as Chrome trace format JSON.
+     *
+     * @return the JSON document.
+     * @throws IOException if the trace could not be serialized.
+     */
+    public String toJson() throws IOException {
+	Map<String, Object> trace = new HashMap<String, Object>();
+	trace.put("traceEvents", getEvents());
+	trace.put("displayTimeUnit", "ms");
+	return JSON.std.asString(trace);
+    }
+
+    /**
+     * Writes the trace to the specified file in Chrome trace format.
+     *
+     * @param file the file to write to.
+     * @throws IOException if the file could not be written.
+     */
+    public void write(File file) throws IOException {
+	FileUtils.writeStringToFile(file, toJson(), "UTF-8");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder implementation of {@link ExecutionEvents}. Only built
+ * on JDK 11 or later, see the {@code jfr} profile.
+ */
+class JfrExecutionEvents extends ExecutionEvents {
+
+    @Name("com.maestrodev.Perform")
+    @Label("Plugin Perform")
+    @Category({ "Maestro", "Plugin" })
+    @Description("Execution of a plugin method through MaestroWorker.perform")
+    static class PerformEvent extends Event {
+	@Label("Plugin Class")
+	String pluginClass;
+
+	@Label("Method")
+	String method;
+
+	@Label("Outcome")
+	String outcome;
+    }
+
+    @Name("com.maestrodev.Connect")
+    @Label("Stomp Connection Acquisition")
+    @Category({ "Maestro", "Messaging" })
+    @Description("Acquisition of a stomp connection from the StompConnectionFactory")
+    static class ConnectEvent extends Event {
+	@Label("URI")
+	String uri;
+
+	@Label("Reused")
+	boolean reused;
+    }
+
+    @Name("com.maestrodev.Encode")
+    @Label("Frame Encoding")
+    @Category({ "Maestro", "Messaging" })
+    @Description("Encoding of the work item into a stomp frame")
+    static class EncodeEvent extends Event {
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+    }
+
+    @Name("com.maestrodev.Send")
+    @Label("Stomp Send")
+    @Category({ "Maestro", "Messaging" })
+    @Description("Sending of a stomp frame to the broker")
+    static class SendEvent extends Event {
+	@Label("Destination")
+	String destination;
+
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+    }
+
+    private static final EventType PERFORM = EventType.getEventType(PerformEvent.class);
+    private static final EventType CONNECT = EventType.getEventType(ConnectEvent.class);
+    private static final EventType ENCODE = EventType.getEventType(EncodeEvent.class);
+    private static final EventType SEND = EventType.getEventType(SendEvent.class);
+
+    @Override
+    Object beginPerform() {
+	if (!PERFORM.isEnabled()) {
+	    return null;
+	}
+	PerformEvent event = new PerformEvent();
+	event.begin();
+	return event;
+    }
+
+    @Override
+    void commitPerform(Object handle, String pluginClass, String method,
+	    String outcome) {
+	if (handle == null) {
+	    return;
+	}
+	PerformEvent event = (PerformEvent) handle;
+	event.end();
+	if (event.shouldCommit()) {
+	    event.pluginClass = pluginClass;
+	    event.method = method;
+	    event.outcome = outcome;
+	    event.commit();
+	}
+    }
+
+    @Override
+    Object beginConnect() {
+	if (!CONNECT.isEnabled()) {
+	    return null;
+	}
+	ConnectEvent event = new ConnectEvent();
+	event.begin();
+	return event;
+    }
+
+    @Override
+    void commitConnect(Object handle, String uri, boolean reused) {
+	if (handle == null) {
+	    return;
+	}
+	ConnectEvent event = (ConnectEvent) handle;
+	event.end();
+	if (event.shouldCommit()) {
+	    event.uri = uri;
+	    event.reused = reused;
+	    event.commit();
+	}
+    }
+
+    @Override
+    Object beginEncode() {
+	if (!ENCODE.isEnabled()) {
+	    return null;
+	}
+	EncodeEvent event = new EncodeEvent();
+	event.begin();
+	return event;
+    }
+
+    @Override
+    void commitEncode(Object handle, int bytes) {
+	if (handle == null) {
+	    return;
+	}
+	EncodeEvent event = (EncodeEvent) handle;
+	event.end();
+	if (event.shouldCommit()) {
+	    event.bytes = bytes;
+	    event.commit();
+	}
+    }
+
+    @Override
+    Object beginSend() {
+	if (!SEND.isEnabled()) {
+	    return null;
+	}
+	SendEvent event = new SendEvent();
+	event.begin();
+	return event;
+    }
+
+    @Override
+    void commitSend(Object handle, String destination, int bytes) {
+	if (handle == null) {
+	    return;
+	}
+	SendEvent event = (SendEvent) handle;
+	event.end();
+	if (event.shouldCommit()) {
+	    event.destination = destination;
+	    event.bytes = bytes;
+	    event.commit();
+	}
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for DispatcherProcessor. The processor runs when the test sources
+ * are compiled, so the workers below have generated dispatchers.
+ */
+public class DispatcherProcessorTest {
+
+    private Map<String, Object> workitem;
+    private Map<String, Object> fields;
+
+    @Before
+    public void before() {
+        fields = new HashMap<String, Object>();
+        workitem = new HashMap<String, Object>();
+        workitem.put("fields", fields);
+    }
+
+    @Test
+    public void testGeneratedDispatcher() throws Exception {
+        PluginDispatcher dispatcher = MaestroWorker.getDispatcher(DispatchedWorker.class);
+        assertEquals(DispatchedWorker.class.getName() + DispatcherProcessor.DISPATCHER_SUFFIX,
+                dispatcher.getClass().getName());
+        assertTrue(dispatcher.hasMethod("work"));
+        assertTrue(dispatcher.hasMethod("inherited"));
+        assertFalse(dispatcher.hasMethod("helper"));
+        assertFalse(dispatcher.hasMethod("getFields"));
+        assertArrayEquals(new String[] { "checksum" }, dispatcher.getMemoizedFields("analyze"));
+        assertNull(dispatcher.getMemoizedFields("work"));
+    }
+
+    @Test
+    public void testPerform() throws Exception {
+        DispatchedWorker worker = new DispatchedWorker();
+        worker.perform("work", workitem);
+        assertNull(worker.getError());
+        assertEquals("worked", worker.getField("result"));
+
+        worker.perform("inherited", workitem);
+        assertEquals("inherited", worker.getField("result"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        DispatchedWorker worker = new DispatchedWorker();
+        worker.perform("fail", workitem);
+        assertTrue(worker.getError(), worker.getError().startsWith("Plugin "
+                + DispatchedWorker.class.getName()
+                + ".fail failed: java.lang.Exception: exception"));
+    }
+
+    @Test
+    public void testFallbackToReflection() throws Exception {
+        DispatchedWorker worker = new DispatchedWorker();
+        // declared by MaestroWorker, so not in the dispatcher
+        worker.perform("getFields", workitem);
+        assertNull(worker.getError());
+
+        worker.perform("missing", workitem);
+        assertTrue(worker.getError(), worker.getError().contains("NoSuchMethodException"));
+    }
+
+    /**
+     * Loads the workers of this test in a class loader of their own, like a
+     * deployed plugin.
+     */
+    static class PluginClassLoader extends ClassLoader {
+        private static final String PREFIX = DispatcherProcessorTest.class.getName() + "$";
+
+        PluginClassLoader() {
+            super(DispatcherProcessorTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(PREFIX)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                try {
+                    byte[] bytes = IOUtils.toByteArray(in);
+                    clazz = defineClass(name, bytes, 0, bytes.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+            return clazz;
+        }
+    }
+
+    @Test
+    public void testPluginClassLoaderCanBeUnloaded() throws Exception {
+        ClassLoader loader = new PluginClassLoader();
+        Class<?> worker = loader.loadClass(DispatchedWorker.class.getName());
+        assertNotSame(DispatchedWorker.class, worker);
+        PluginDispatcher dispatcher = MaestroWorker.getDispatcher(worker);
+        assertSame(loader, dispatcher.getClass().getClassLoader());
+        assertTrue(dispatcher.hasMethod("work"));
+
+        WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(loader);
+        loader = null;
+        worker = null;
+        dispatcher = null;
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("the plugin class loader is still reachable", reference.get());
+    }
+
+    @Test
+    public void testNoDispatcher() throws Exception {
+        MaestroWorker anonymous = new MaestroWorker() {
+        };
+        assertFalse(MaestroWorker.getDispatcher(anonymous.getClass()).hasMethod("getFields"));
+    }
+
+    public abstract static class BaseWorker extends MaestroWorker {
+        public void inherited() {
+            setField("result", "inherited");
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // no broker
+        }
+    }
+
+    public static class DispatchedWorker extends BaseWorker {
+        public void work() {
+            setField("result", "worked");
+        }
+
+        @Memoize("checksum")
+        public void analyze() {
+            setField("result", "analyzed");
+        }
+
+        public void fail() throws Exception {
+            throw new Exception("exception");
+        }
+
+        void helper() {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for FrameRecorder.
+ */
+public class FrameRecorderTest {
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("frames", ".rec");
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    private StompFrame frame(String destination, String body) {
+        StompFrame frame = new StompFrame(SEND);
+        frame.addHeader(DESTINATION, StompFrame.encodeHeader(destination));
+        frame.addHeader(new AsciiBuffer("maestro-sequence"), StompFrame.encodeHeader("7"));
+        frame.content(new Buffer(body.getBytes()));
+        return frame;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        recorder.record(1000, frame("/queue/output", "{\"__output__\":\"line\"}"));
+        recorder.record(1250, frame("/queue/persist", ""));
+        assertEquals(2, recorder.getCount());
+        recorder.close();
+
+        // appending to an existing recording
+        recorder = new FrameRecorder(file);
+        recorder.record(1500, frame("/queue/output", "more"));
+        recorder.close();
+
+        FrameRecorder.Reader reader = new FrameRecorder.Reader(file);
+        try {
+            FrameRecorder.RecordedFrame first = reader.next();
+            assertEquals(1000, first.getTimestamp());
+            assertEquals("/queue/output", first.getFrame().getHeader(DESTINATION).toString());
+            assertEquals("7", first.getFrame().getHeader(new AsciiBuffer("maestro-sequence")).toString());
+            assertEquals("{\"__output__\":\"line\"}", first.getFrame().content().ascii().toString());
+
+            FrameRecorder.RecordedFrame second = reader.next();
+            assertEquals(1250, second.getTimestamp());
+            assertEquals("/queue/persist", second.getFrame().getHeader(DESTINATION).toString());
+            assertEquals(0, second.getFrame().content().length());
+
+            assertEquals(1500, reader.next().getTimestamp());
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotARecording() throws Exception {
+        FileUtils.writeStringToFile(file, "not a recording");
+        new FrameRecorder.Reader(file);
+    }
+}
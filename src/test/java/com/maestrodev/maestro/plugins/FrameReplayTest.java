@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for FrameReplay.
+ */
+public class FrameReplayTest {
+
+    private File first;
+    private File second;
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void before() throws Exception {
+        first = record("a", 0, 200, 400);
+        second = record("b", 0, 100);
+    }
+
+    @After
+    public void after() {
+        first.delete();
+        second.delete();
+    }
+
+    private File record(String name, long... offsets) throws Exception {
+        File file = File.createTempFile("replay", ".rec");
+        file.delete();
+        FrameRecorder recorder = new FrameRecorder(file);
+        for (int i = 0; i < offsets.length; i++) {
+            StompFrame frame = new StompFrame(SEND);
+            frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/" + name));
+            frame.content(new Buffer((name + i).getBytes()));
+            recorder.record(10000 + offsets[i], frame);
+        }
+        recorder.close();
+        return file;
+    }
+
+    private FrameReplay.SenderFactory senders() {
+        return new FrameReplay.SenderFactory() {
+            public FrameReplay.Sender open() {
+                return new FrameReplay.Sender() {
+                    public void send(StompFrame frame) {
+                        sent.add(frame.content().ascii().toString());
+                    }
+
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void testRecordedSpeed() throws Exception {
+        long begin = System.currentTimeMillis();
+        long frames = new FrameReplay(1).replay(Arrays.asList(first, second), senders());
+        long elapsed = System.currentTimeMillis() - begin;
+
+        assertEquals(5, frames);
+        assertTrue("replayed in " + elapsed + "ms", elapsed >= 400);
+        // the recordings are mixed by time
+        assertTrue(sent.indexOf("b1") < sent.indexOf("a1"));
+        assertTrue(sent.indexOf("a0") < sent.indexOf("a1"));
+        assertTrue(sent.indexOf("a1") < sent.indexOf("a2"));
+    }
+
+    @Test
+    public void testFasterSpeed() throws Exception {
+        long begin = System.currentTimeMillis();
+        new FrameReplay(4).replay(Arrays.asList(first), senders());
+        long elapsed = System.currentTimeMillis() - begin;
+
+        assertEquals(Arrays.asList("a0", "a1", "a2"), sent);
+        assertTrue("replayed in " + elapsed + "ms", elapsed >= 100 && elapsed < 400);
+    }
+
+    @Test
+    public void testMaxSpeed() throws Exception {
+        long begin = System.currentTimeMillis();
+        assertEquals(5, new FrameReplay(0).replay(Arrays.asList(first, second), senders()));
+        assertTrue(System.currentTimeMillis() - begin < 400);
+    }
+}
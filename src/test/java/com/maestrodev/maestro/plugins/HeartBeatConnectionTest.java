@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+import org.junit.Test;
+
+/**
+ * Unit test for HeartBeatConnection.
+ */
+public class HeartBeatConnectionTest {
+
+    private StompFrame connected(String heartBeat) {
+        StompFrame frame = new StompFrame(CONNECTED);
+        if (heartBeat != null) {
+            frame.addHeader(HeartBeatConnection.HEART_BEAT, StompFrame.encodeHeader(heartBeat));
+        }
+        return frame;
+    }
+
+    @Test
+    public void testNegotiate() throws Exception {
+        // the larger of the two intervals wins
+        assertEquals(10000, HeartBeatConnection.negotiate(connected("5000,0"), 10000));
+        assertEquals(20000, HeartBeatConnection.negotiate(connected("20000,0"), 10000));
+    }
+
+    @Test
+    public void testNegotiateDisabled() throws Exception {
+        assertEquals(0, HeartBeatConnection.negotiate(connected("0,0"), 10000));
+        // the server can't send heart-beats, it only wants to receive them
+        assertEquals(0, HeartBeatConnection.negotiate(connected("0,5000"), 10000));
+        assertEquals(0, HeartBeatConnection.negotiate(connected("5000,5000"), 0));
+        // STOMP 1.0 servers don't send the header
+        assertEquals(0, HeartBeatConnection.negotiate(connected(null), 10000));
+        assertEquals(0, HeartBeatConnection.negotiate(null, 10000));
+    }
+
+    @Test
+    public void testInterruptDoesNotOutliveSend() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final HeartBeatConnection connection = new HeartBeatConnection("test://", new FrameConnection() {
+            public void send(StompFrame frame) throws IOException {
+                sending.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    // the socket write gives up without restoring the flag
+                }
+            }
+
+            public StompFrame connectedFrame() {
+                return connected("50,0");
+            }
+
+            public long getReceivedCount() {
+                return 0;
+            }
+
+            public void close() {
+            }
+        }, 50);
+
+        final Exception[] failure = new Exception[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.send(new StompFrame(SEND));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        t.start();
+        sending.await();
+        assertTrue(connection.checkHeartBeat(System.currentTimeMillis() + 1000, 2));
+        t.join(1000);
+
+        assertTrue(failure[0] instanceof InterruptedIOException);
+        assertFalse("interrupt flag left set after send", interrupted[0]);
+        // a dead connection isn't interrupted again
+        assertTrue(connection.checkHeartBeat(System.currentTimeMillis() + 2000, 2));
+    }
+
+    @Test
+    public void testSilentServerIsDead() throws Exception {
+        MemoryBroker broker = MemoryBroker.get("heartbeat");
+        broker.setHeartBeat(50);
+        try {
+            HeartBeatConnection connection = new HeartBeatConnection("mem://heartbeat",
+                    broker.connect(), 50);
+            assertEquals(50, connection.getInterval());
+
+            // heart-beats keep an idle connection alive
+            Thread.sleep(150);
+            assertFalse(connection.checkHeartBeat(System.currentTimeMillis(), 2));
+
+            // the server stops sending anything, like a socket that went away
+            broker.setHeartBeatsPaused(true);
+            long now = System.currentTimeMillis();
+            assertFalse(connection.checkHeartBeat(now, 2));
+            assertFalse(connection.checkHeartBeat(now + 50, 2));
+            assertTrue(connection.checkHeartBeat(now + 200, 2));
+
+            StompFrame frame = new StompFrame(SEND);
+            frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+            frame.content(new Buffer("body".getBytes()));
+            try {
+                connection.send(frame);
+                fail("send should have failed");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(0, broker.getEnqueueCount());
+        } finally {
+            broker.stop();
+        }
+    }
+}
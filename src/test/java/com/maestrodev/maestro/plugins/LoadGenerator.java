@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static java.lang.String.format;
+import static org.fusesource.stomp.client.Constants.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.broker.region.DestinationStatistics;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * End-to-end load generator. Boots an in-process ActiveMQ broker with a stomp
+ * connector, like {@link MaestroWorkerStompTest}, and runs a number of
+ * concurrent workers, each one performing a weighted mix of
+ * {@link MaestroWorker#writeOutput(String)},
+ * {@link MaestroWorker#setWaiting(boolean)}, record persistence and
+ * {@link MaestroWorker#perform(String, Map)} calls against workitems of a
+ * configurable size. Workers run on {@link TaskThreads} threads, so
+ * {@code -Dmaestro.threads=virtual} runs them on virtual threads.
+ * <p>
+ * Run it from the test classpath, configuring it with system properties:
+ *
+ * <pre>
+ * -Dload.workers=8 -Dload.operations=100 -Dload.fields=20 -Dload.fieldSize=256
+ * -Dload.mix=output:70,waiting:10,persist:10,perform:10 -Dload.port=61620
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String QUEUE = "/queue/load";
+
+    /**
+     * The operations a worker can run.
+     */
+    enum Operation {
+	OUTPUT, WAITING, PERSIST, PERFORM
+    }
+
+    private int workers = 4;
+    private int operations = 50;
+    private int fields = 20;
+    private int fieldSize = 256;
+    private int port = 61620;
+    private Map<Operation, Integer> mix = parseMix("output:70,waiting:10,persist:10,perform:10");
+
+    /**
+     * The results of a run.
+     */
+    static class Report {
+	long operations;
+	long errors;
+	long elapsedNanos;
+	long[] latencies;
+	long brokerEnqueued;
+	long brokerDequeued;
+	long consumed;
+	long allocatedBytes;
+
+	double throughput() {
+	    return operations / (elapsedNanos / 1e9);
+	}
+
+	long percentile(double p) {
+	    if (latencies.length == 0) {
+		return 0;
+	    }
+	    int i = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+	    return latencies[Math.max(0, Math.min(i, latencies.length - 1))];
+	}
+
+	double allocationRate() {
+	    return allocatedBytes / (elapsedNanos / 1e9);
+	}
+
+	@Override
+	public String toString() {
+	    return format("operations: %d (%d errors) in %.2fs, %.1f ops/s%n"
+		    + "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n"
+		    + "broker: %d enqueued, %d dequeued, %d consumed%n"
+		    + "allocation: %.1f MB total, %.1f MB/s",
+		    operations, errors, elapsedNanos / 1e9, throughput(),
+		    percentile(50) / 1e6, percentile(90) / 1e6,
+		    percentile(99) / 1e6, percentile(100) / 1e6,
+		    brokerEnqueued, brokerDequeued, consumed,
+		    allocatedBytes / 1048576.0, allocationRate() / 1048576.0);
+	}
+    }
+
+    /**
+     * A worker whose plugin method writes a couple of lines of output and
+     * sets an output field, like a typical plugin would.
+     */
+    public static class LoadWorker extends MaestroWorker {
+	public void work() {
+	    writeOutput("working on " + getField("field0") + "\n");
+	    setField("result", "done");
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	LoadGenerator generator = new LoadGenerator();
+	generator.workers = Integer.getInteger("load.workers", generator.workers);
+	generator.operations = Integer.getInteger("load.operations", generator.operations);
+	generator.fields = Integer.getInteger("load.fields", generator.fields);
+	generator.fieldSize = Integer.getInteger("load.fieldSize", generator.fieldSize);
+	generator.port = Integer.getInteger("load.port", generator.port);
+	String mix = System.getProperty("load.mix");
+	if (mix != null) {
+	    generator.mix = parseMix(mix);
+	}
+	System.out.println(generator.run());
+    }
+
+    /**
+     * Parses an operation mix such as {@code output:70,perform:30}.
+     *
+     * @param mix the mix specification.
+     * @return the weight of each operation.
+     */
+    static Map<Operation, Integer> parseMix(String mix) {
+	Map<Operation, Integer> weights = new LinkedHashMap<Operation, Integer>();
+	for (String entry : mix.split(",")) {
+	    String[] pair = entry.trim().split(":");
+	    weights.put(Operation.valueOf(pair[0].trim().toUpperCase()),
+		    Integer.parseInt(pair[1].trim()));
+	}
+	return weights;
+    }
+
+    /**
+     * Starts the broker, runs the workers and stops the broker.
+     *
+     * @return the report.
+     * @throws Exception if the broker could not be started.
+     */
+    Report run() throws Exception {
+	BrokerService broker = new BrokerService();
+	TransportConnector connector = new TransportConnector();
+	connector.setUri(new URI("stomp://localhost:" + port));
+	broker.addConnector(connector);
+	broker.setPersistent(false);
+	broker.setUseJmx(true);
+	broker.setBrokerName("load_broker");
+	broker.start();
+	broker.waitUntilStarted();
+
+	final AtomicLong consumed = new AtomicLong();
+	Thread consumer = startConsumer(consumed);
+	try {
+	    Report report = runWorkers();
+	    // let the consumer drain what is left
+	    // counted on the load queue alone, as the broker totals include
+	    // advisory topics
+	    DestinationStatistics statistics = broker.getDestination(
+		    new ActiveMQQueue(QUEUE.substring("/queue/".length())))
+		    .getDestinationStatistics();
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (consumed.get() < statistics.getEnqueues().getCount()
+		    && System.currentTimeMillis() < deadline) {
+		Thread.sleep(100);
+	    }
+	    report.brokerEnqueued = statistics.getEnqueues().getCount();
+	    report.brokerDequeued = statistics.getDequeues().getCount();
+	    report.consumed = consumed.get();
+	    return report;
+	} finally {
+	    consumer.interrupt();
+	    StompConnectionFactory.getInstance().closeConnections();
+	    broker.stop();
+	    broker.waitUntilStopped();
+	}
+    }
+
+    /**
+     * Starts a consumer that drains the queue, so the broker never applies
+     * producer flow control because of a backlog.
+     */
+    private Thread startConsumer(final AtomicLong consumed) throws Exception {
+	final BlockingConnection connection = new Stomp("localhost", port).connectBlocking();
+	StompFrame frame = new StompFrame(SUBSCRIBE);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader(QUEUE));
+	frame.addHeader(ID, connection.nextId());
+	connection.request(frame);
+
+	Thread consumer = new Thread("load-consumer") {
+	    @Override
+	    public void run() {
+		try {
+		    while (!isInterrupted()) {
+			if (MESSAGE.equals(connection.receive().action())) {
+			    consumed.incrementAndGet();
+			}
+		    }
+		} catch (Exception e) {
+		    // stopped
+		} finally {
+		    try {
+			connection.close();
+		    } catch (Exception e) {
+			// ignore
+		    }
+		}
+	    }
+	};
+	consumer.setDaemon(true);
+	consumer.start();
+	return consumer;
+    }
+
+    private Report runWorkers() throws InterruptedException {
+	final List<long[]> latencies = new ArrayList<long[]>();
+	final AtomicLong errors = new AtomicLong();
+	final AtomicLong allocated = new AtomicLong();
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(workers);
+	final Operation[] schedule = schedule();
+
+	for (int w = 0; w < workers; w++) {
+	    final long[] workerLatencies = new long[operations];
+	    latencies.add(workerLatencies);
+	    final long seed = w;
+	    Thread t = TaskThreads.newThread("load-worker-" + w, new Runnable() {
+		public void run() {
+		    Random random = new Random(seed);
+		    long allocatedBefore = allocatedBytes();
+		    try {
+			start.await();
+			for (int i = 0; i < operations; i++) {
+			    Operation op = schedule[random.nextInt(schedule.length)];
+			    long begin = System.nanoTime();
+			    try {
+				execute(op, i);
+			    } catch (RuntimeException e) {
+				errors.incrementAndGet();
+			    }
+			    workerLatencies[i] = System.nanoTime() - begin;
+			}
+		    } catch (InterruptedException e) {
+			// stopped
+		    } finally {
+			allocated.addAndGet(allocatedBytes() - allocatedBefore);
+			done.countDown();
+		    }
+		}
+	    });
+	    t.start();
+	}
+
+	long begin = System.nanoTime();
+	start.countDown();
+	done.await();
+
+	Report report = new Report();
+	report.elapsedNanos = System.nanoTime() - begin;
+	report.operations = (long) workers * operations;
+	report.errors = errors.get();
+	report.allocatedBytes = allocated.get();
+	long[] all = new long[workers * operations];
+	for (int w = 0; w < workers; w++) {
+	    System.arraycopy(latencies.get(w), 0, all, w * operations, operations);
+	}
+	Arrays.sort(all);
+	report.latencies = all;
+	return report;
+    }
+
+    /**
+     * Spreads the operations over an array proportionally to their weights so
+     * a random index picks them with the configured probabilities.
+     */
+    private Operation[] schedule() {
+	List<Operation> schedule = new ArrayList<Operation>();
+	for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+	    for (int i = 0; i < entry.getValue(); i++) {
+		schedule.add(entry.getKey());
+	    }
+	}
+	return schedule.toArray(new Operation[schedule.size()]);
+    }
+
+    private void execute(Operation op, int i) {
+	LoadWorker worker = new LoadWorker();
+	Map<String, Object> config = new HashMap<String, Object>();
+	config.put("host", "localhost");
+	config.put("port", String.valueOf(port));
+	config.put("queue", QUEUE);
+	worker.setStompConfig(config);
+	Map<String, Object> workitem = workitem();
+
+	switch (op) {
+	case OUTPUT:
+	    worker.setWorkitem(workitem);
+	    worker.writeOutput("line " + i + " of some build output\n");
+	    break;
+	case WAITING:
+	    worker.setWorkitem(workitem);
+	    worker.setWaiting(i % 2 == 0);
+	    break;
+	case PERSIST:
+	    worker.setWorkitem(workitem);
+	    worker.updateFieldsInRecord("model", "record" + i, "field", "value" + i);
+	    break;
+	case PERFORM:
+	    worker.perform("work", workitem);
+	    if (worker.getError() != null) {
+		throw new IllegalStateException(worker.getError());
+	    }
+	    break;
+	}
+    }
+
+    /**
+     * Builds a workitem with the configured number and size of fields.
+     */
+    private Map<String, Object> workitem() {
+	char[] chars = new char[fieldSize];
+	Arrays.fill(chars, 'x');
+	String value = new String(chars);
+	Map<String, Object> f = new HashMap<String, Object>();
+	for (int i = 0; i < fields; i++) {
+	    f.put("field" + i, value);
+	}
+	Map<String, Object> workitem = new HashMap<String, Object>();
+	workitem.put("fields", f);
+	return workitem;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or 0 if the
+     * JVM can't tell.
+     */
+    private static long allocatedBytes() {
+	java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	if (bean instanceof com.sun.management.ThreadMXBean) {
+	    return ((com.sun.management.ThreadMXBean) bean)
+		    .getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	return 0;
+    }
+
+    LoadGenerator workers(int workers) {
+	this.workers = workers;
+	return this;
+    }
+
+    LoadGenerator operations(int operations) {
+	this.operations = operations;
+	return this;
+    }
+
+    LoadGenerator mix(String mix) {
+	this.mix = parseMix(mix);
+	return this;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Runs a small load through {@link LoadGenerator} to keep it working.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void testRun() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator().workers(2).operations(3)
+                .mix("output:1,waiting:1,persist:1,perform:1").run();
+
+        assertEquals(6, report.operations);
+        assertEquals(0, report.errors);
+        assertEquals(6, report.latencies.length);
+        assertTrue(report.toString(), report.brokerEnqueued >= 6);
+        assertEquals(report.brokerEnqueued, report.consumed);
+        assertTrue(report.percentile(50) <= report.percentile(99));
+    }
+}
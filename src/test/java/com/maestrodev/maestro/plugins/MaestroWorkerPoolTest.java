@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for MaestroWorkerPool.
+ */
+public class MaestroWorkerPoolTest {
+
+    private MaestroWorkerPool pool;
+
+    @Before
+    public void before() {
+        pool = new MaestroWorkerPool(1);
+    }
+
+    private Map<String, Object> workitem(String name) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("name", name);
+        Map<String, Object> workitem = new HashMap<String, Object>();
+        workitem.put("fields", fields);
+        return workitem;
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        PooledWorker first = pool.borrow(PooledWorker.class);
+        first.perform("greet", workitem("a"));
+        pool.release(first);
+
+        assertEquals(1, pool.getIdleCount(PooledWorker.class));
+        assertNull(first.getWorkitem());
+        assertNull(first.greeting);
+        assertEquals(1, first.resets);
+
+        PooledWorker second = pool.borrow(PooledWorker.class);
+        assertSame(first, second);
+        assertEquals(0, pool.getIdleCount(PooledWorker.class));
+    }
+
+    @Test
+    public void testPerform() throws Exception {
+        Map<?, ?> result = pool.perform(PooledWorker.class, "greet", workitem("a"),
+                new HashMap<String, Object>());
+        assertEquals("hello a", ((Map<?, ?>) result.get("fields")).get("greeting"));
+
+        result = pool.perform(PooledWorker.class, "greet", workitem("b"),
+                new HashMap<String, Object>());
+        assertEquals("hello b", ((Map<?, ?>) result.get("fields")).get("greeting"));
+        assertNull(((Map<?, ?>) result.get("fields")).get("__error__"));
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testSubmit() throws Exception {
+        Future<Map> first = pool.submit(PooledWorker.class, "greet", workitem("a"),
+                new HashMap<String, Object>());
+        Future<Map> second = pool.submit(PooledWorker.class, "greet", workitem("b"),
+                new HashMap<String, Object>());
+        assertEquals("hello a", ((Map<?, ?>) first.get().get("fields")).get("greeting"));
+        assertEquals("hello b", ((Map<?, ?>) second.get().get("fields")).get("greeting"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testMaxIdle() throws Exception {
+        PooledWorker first = pool.borrow(PooledWorker.class);
+        PooledWorker second = pool.borrow(PooledWorker.class);
+        assertNotSame(first, second);
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getIdleCount(PooledWorker.class));
+    }
+
+    @Test
+    public void testConstructorFailures() throws Exception {
+        try {
+            pool.borrow(FailingWorker.class);
+            fail("borrow should have failed");
+        } catch (IllegalStateException e) {
+            // thrown by the constructor, not wrapped
+            assertEquals("no license", e.getMessage());
+        }
+        try {
+            pool.borrow(NamedWorker.class);
+            fail("borrow should have failed");
+        } catch (InstantiationException e) {
+            assertTrue(e.getCause() instanceof NoSuchMethodException);
+        }
+    }
+
+    @Test
+    public void testPluginResetMethod() throws Exception {
+        // plugins can have their own reset method, performed like any other
+        Map<?, ?> result = pool.perform(ResettingWorker.class, "reset", workitem("a"),
+                new HashMap<String, Object>());
+        assertNull(((Map<?, ?>) result.get("fields")).get("__error__"));
+        ResettingWorker worker = pool.borrow(ResettingWorker.class);
+        assertEquals(1, worker.resets);
+        assertNull(worker.getWorkitem());
+    }
+
+    public static class ResettingWorker extends MaestroWorker {
+        int resets;
+
+        public void reset() {
+            resets++;
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // no broker
+        }
+    }
+
+    public static class FailingWorker extends MaestroWorker {
+        public FailingWorker() {
+            throw new IllegalStateException("no license");
+        }
+    }
+
+    public static class NamedWorker extends MaestroWorker {
+        public NamedWorker(String name) {
+        }
+    }
+
+    public static class PooledWorker extends MaestroWorker {
+        String greeting;
+        int resets;
+
+        public void greet() {
+            // per-task state that must not leak into the next task
+            assertNull(greeting);
+            greeting = "hello " + getField("name");
+            setField("greeting", greeting);
+        }
+
+        @Override
+        protected void resetState() {
+            greeting = null;
+            resets++;
+        }
+
+        @Override
+        public void writeOutput(String output) {
+            // no broker
+        }
+    }
+}
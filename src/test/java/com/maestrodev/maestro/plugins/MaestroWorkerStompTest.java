@@ -6,13 +6,19 @@ package com.maestrodev.maestro.plugins;
 import static org.fusesource.stomp.client.Constants.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.TransportConnector;
+import org.apache.commons.io.FileUtils;
 import org.fusesource.stomp.client.BlockingConnection;
 import org.fusesource.stomp.client.Stomp;
 import org.fusesource.stomp.codec.StompFrame;
@@ -32,7 +38,7 @@ public class MaestroWorkerStompTest {
 
     private static final int PORT = 61619;
 
-    private BrokerService broker = new BrokerService();
+    private BrokerService broker;
     
     HashMap<String,Object> config;
 
@@ -46,19 +52,27 @@ public class MaestroWorkerStompTest {
 	config.put("port", "61619");
 	config.put("queue", "/queue/test");
 	
+	startBroker();
+    }
+
+    private void startBroker() throws Exception {
 	// configure the broker
+	broker = new BrokerService();
 	TransportConnector connector = new TransportConnector();
 	connector.setUri(new URI("stomp://" + HOST + ":" + PORT));
 	broker.addConnector(connector);
 	broker.setPersistent(false);
 	broker.setBrokerName("test_broker");
 	broker.start();
+	broker.waitUntilStarted();
     }
 
     @After
     public void tearDown() throws Exception {
+	StompConnectionFactory.getInstance().closeConnections();
 	if (broker != null) {
 	    broker.stop();
+	    broker.waitUntilStopped();
 	}
     }
 
@@ -280,4 +294,160 @@ public class MaestroWorkerStompTest {
 	assertTrue(workitem.get("__model__").equals("model"));
 	assertTrue(workitem.get("__name__").equals("name_or_id"));
     }
+
+    @Test
+    public void testReconnectAfterBrokerRestart() throws Exception {
+
+	MaestroWorker worker = new MaestroWorker();
+	worker.setWorkitem(workitem);
+	worker.setStompConfig(config);
+
+	// opens the kept-alive connection
+	worker.writeOutput("before restart");
+
+	broker.stop();
+	broker.waitUntilStopped();
+	startBroker();
+
+	Stomp stomp = getStomp();
+	BlockingConnection connection = stomp.connectBlocking();
+
+	StompFrame frame = new StompFrame(SUBSCRIBE);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+	frame.addHeader(ID, connection.nextId());
+	StompFrame response = connection.request(frame);
+
+	// This unblocks once the response frame is received.
+	assertNotNull(response);
+
+	// the dead connection is replaced transparently
+	worker.writeOutput("after restart");
+
+	StompFrame received = connection.receive();
+	assertTrue(received.action().equals(MESSAGE));
+
+	workitem = JSON.std.mapFrom(received.content().ascii().toString());
+	assertEquals("after restart", workitem.get("__output__"));
+    }
+
+    @Test
+    public void testBufferedOutput() throws Exception {
+
+	config.put("buffer_output", "true");
+	MaestroWorker worker = new MaestroWorker();
+	worker.setWorkitem(workitem);
+	worker.setStompConfig(config);
+
+	Stomp stomp = getStomp();
+	BlockingConnection connection = stomp.connectBlocking();
+
+	StompFrame frame = new StompFrame(SUBSCRIBE);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+	frame.addHeader(ID, connection.nextId());
+	StompFrame response = connection.request(frame);
+
+	// This unblocks once the response frame is received.
+	assertNotNull(response);
+
+	worker.writeOutput("first");
+	worker.writeOutput("second");
+	worker.flushOutput();
+
+	StompFrame received = connection.receive();
+	workitem = JSON.std.mapFrom(received.content().ascii().toString());
+	assertEquals("first", workitem.get("__output__"));
+	received = connection.receive();
+	workitem = JSON.std.mapFrom(received.content().ascii().toString());
+	assertEquals("second", workitem.get("__output__"));
+    }
+
+    @Test
+    public void testAttachFile() throws Exception {
+
+	MaestroWorker worker = new MaestroWorker();
+	worker.setWorkitem(workitem);
+	worker.setStompConfig(config);
+
+	byte[] data = new byte[MaestroWorker.ATTACHMENT_CHUNK_SIZE * 2 + 100];
+	new Random(0).nextBytes(data);
+	File file = File.createTempFile("attachment", ".bin");
+	file.deleteOnExit();
+	FileUtils.writeByteArrayToFile(file, data);
+
+	Stomp stomp = getStomp();
+	BlockingConnection connection = stomp.connectBlocking();
+
+	StompFrame frame = new StompFrame(SUBSCRIBE);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+	frame.addHeader(ID, connection.nextId());
+	StompFrame response = connection.request(frame);
+
+	// This unblocks once the response frame is received.
+	assertNotNull(response);
+
+	String transferId = worker.attachFile(file.toPath(), "report.bin");
+
+	ByteArrayOutputStream received = new ByteArrayOutputStream();
+	for (int i = 0; i < 3; i++) {
+	    StompFrame chunk = connection.receive();
+	    assertEquals(transferId, chunk.getHeader(StompFrame.encodeHeader("maestro-transfer-id")).toString());
+	    assertEquals(String.valueOf(i), chunk.getHeader(StompFrame.encodeHeader("maestro-sequence")).toString());
+	    received.write(chunk.content().toByteArray());
+	}
+	assertArrayEquals(data, received.toByteArray());
+
+	StompFrame done = connection.receive();
+	workitem = JSON.std.mapFrom(done.content().ascii().toString());
+	Map<?, ?> attachment = (Map<?, ?>) workitem.get("__attachment__");
+	assertEquals("report.bin", attachment.get("name"));
+	assertEquals(transferId, attachment.get("transfer_id"));
+	assertEquals(3, ((Number) attachment.get("chunks")).intValue());
+	assertEquals(data.length, ((Number) attachment.get("length")).intValue());
+	byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(received.toByteArray());
+	assertEquals("sha-256:" + String.format("%064x", new BigInteger(1, sha256)),
+		attachment.get("checksum"));
+	assertNull(worker.getWorkitem().get("__attachment__"));
+    }
+
+    @Test
+    public void testDestinationPerMessageClass() throws Exception {
+
+	config.put("output_queue", "/queue/test.output");
+	config.put("persist_queue", "/queue/test.persist");
+	MaestroWorker worker = new MaestroWorker();
+	worker.setWorkitem(workitem);
+	worker.setStompConfig(config);
+
+	Stomp stomp = getStomp();
+	BlockingConnection connection = stomp.connectBlocking();
+
+	for (String queue : new String[] { "/queue/test", "/queue/test.output", "/queue/test.persist" }) {
+	    StompFrame frame = new StompFrame(SUBSCRIBE);
+	    frame.addHeader(DESTINATION, StompFrame.encodeHeader(queue));
+	    frame.addHeader(ID, connection.nextId());
+	    assertNotNull(connection.request(frame));
+	}
+
+	worker.writeOutput("Hello Maestro Plugin!");
+	worker.setWaiting(true);
+	worker.updateFieldsInRecord("model", "record", "field", "value");
+
+	Map<String, Map<String, Object>> received = new HashMap<String, Map<String, Object>>();
+	Map<String, Integer> sequences = new HashMap<String, Integer>();
+	for (int i = 0; i < 3; i++) {
+	    StompFrame frame = connection.receive();
+	    assertEquals(MESSAGE, frame.action());
+	    received.put(frame.getHeader(DESTINATION).toString(),
+		    JSON.std.mapFrom(frame.content().ascii().toString()));
+	    sequences.put(frame.getHeader(DESTINATION).toString(), Integer.valueOf(
+		    frame.getHeader(StompFrame.encodeHeader("maestro-message-sequence")).toString()));
+	}
+	// the order they were sent in, whichever queue they arrived from
+	assertTrue(sequences.get("/queue/test.output") < sequences.get("/queue/test"));
+	assertTrue(sequences.get("/queue/test") < sequences.get("/queue/test.persist"));
+	assertEquals("Hello Maestro Plugin!", received.get("/queue/test.output").get("__output__"));
+	// control messages fall back to queue
+	assertEquals("true", received.get("/queue/test").get("__waiting__"));
+	assertEquals("true", received.get("/queue/test.persist").get("__persist__"));
+    }
 }
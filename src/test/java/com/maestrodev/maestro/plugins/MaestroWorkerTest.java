@@ -3,15 +3,21 @@
  */
 package com.maestrodev.maestro.plugins;
 
+import static org.fusesource.stomp.client.Constants.*;
 import static org.junit.Assert.*;
 
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 
+import org.fusesource.stomp.codec.StompFrame;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -100,8 +106,291 @@ public class MaestroWorkerTest {
         assertEquals("{\"fields\":{\"big\":16740918963672507888}}", JSON.std.asString(result));
     }
 
+    @Test
+    public void testPerformTrace() throws Exception {
+        TaskTrace trace = new TaskTrace();
+        worker.setTrace(trace);
+        worker.perform("test", workitem);
+
+        List<Map<String, Object>> events = trace.getEvents();
+        assertEquals(2, events.size());
+        assertEquals("test", events.get(0).get("name"));
+        assertEquals("perform", events.get(1).get("name"));
+        assertEquals("X", events.get(1).get("ph"));
+        assertTrue(trace.toJson().contains("\"traceEvents\":["));
+    }
+
+    @Test
+    public void testRunSubSteps() throws Exception {
+        Map<String, SubStep> steps = new LinkedHashMap<String, SubStep>();
+        steps.put("host1", new SubStep() {
+            public void run(SubStepContext context) throws Exception {
+                Thread.sleep(200);
+                context.writeOutput("deployed\n");
+                context.setField("host1", "ok");
+            }
+        });
+        steps.put("host2", new SubStep() {
+            public void run(SubStepContext context) throws Exception {
+                Thread.sleep(200);
+                context.writeOutput("deployed\n");
+                context.setField("host2", "ok");
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        assertTrue(worker.runSubSteps(steps));
+        assertTrue(System.currentTimeMillis() - start < 400);
+
+        assertEquals("ok", worker.getField("host1"));
+        assertEquals("ok", worker.getField("host2"));
+        assertNull(worker.getError());
+        String output = ((MaestroWorkerStub) worker).output.toString();
+        assertTrue(output, output.contains("[host1] deployed\n"));
+        assertTrue(output, output.contains("[host2] deployed\n"));
+    }
+
+    @Test
+    public void testRunSubStepsMergesErrorsInOrder() throws Exception {
+        Map<String, SubStep> steps = new LinkedHashMap<String, SubStep>();
+        steps.put("first", new SubStep() {
+            public void run(SubStepContext context) throws Exception {
+                Thread.sleep(100);
+                context.setField("result", "first");
+                throw new Exception("first failed");
+            }
+        });
+        steps.put("second", new SubStep() {
+            public void run(SubStepContext context) throws Exception {
+                context.setField("result", "second");
+                context.setError("second failed");
+            }
+        });
+
+        assertFalse(worker.runSubSteps(steps));
+
+        // merged in map order, not completion order
+        assertEquals("second", worker.getField("result"));
+        String error = worker.getError();
+        assertTrue(error, error.startsWith("Sub-step first failed: java.lang.Exception: first failed"));
+        assertTrue(error, error.endsWith("\nsecond failed"));
+    }
+
+    @Test
+    public void testSubStepsSendConcurrently() throws Exception {
+        MemoryBroker broker = MemoryBroker.get("substeps");
+        try {
+            MemoryConnection consumer = broker.connect();
+            StompFrame subscribe = new StompFrame(SUBSCRIBE);
+            subscribe.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+            subscribe.addHeader(ID, consumer.nextId());
+            consumer.request(subscribe);
+
+            Map<String, Object> config = new HashMap<String, Object>();
+            config.put("url", "mem://substeps");
+            config.put("queue", "/queue/test");
+            final MaestroWorker sender = new MaestroWorker();
+            sender.setWorkitem(workitem);
+            sender.setStompConfig(config);
+            fields.put("host", "example.com");
+
+            // each step waits in the trace, once its frame is delivered, for
+            // the other step's frame to be delivered too: if one send held a
+            // lock the other needs, the barrier would break
+            final CyclicBarrier delivered = new CyclicBarrier(2);
+            sender.setTrace(new TaskTrace() {
+                @Override
+                public void record(String name, long start) {
+                    super.record(name, start);
+                    if (name.equals("send")) {
+                        try {
+                            delivered.await(10, TimeUnit.SECONDS);
+                        } catch (Exception e) {
+                            throw new IllegalStateException("the other step's send did not run", e);
+                        }
+                    }
+                }
+            });
+
+            final Map<String, SubStep> steps = new LinkedHashMap<String, SubStep>();
+            for (final String name : new String[] { "first", "second" }) {
+                steps.put(name, new SubStep() {
+                    public void run(SubStepContext context) throws Exception {
+                        context.writeOutput("deploying to " + context.getField("host") + "\n");
+                    }
+                });
+            }
+            assertTrue(sender.runSubSteps(steps));
+            assertFalse(delivered.isBroken());
+
+            for (int i = 0; i < 2; i++) {
+                StompFrame frame = consumer.receive(10, TimeUnit.SECONDS);
+                assertNotNull("output " + i + " not sent", frame);
+                Map<String, Object> message = JSON.std.mapFrom(frame.content().ascii().toString());
+                assertTrue(message.get("__output__").toString().endsWith("] deploying to example.com\n"));
+            }
+        } finally {
+            StompConnectionFactory.getInstance().closeConnections();
+            broker.stop();
+        }
+    }
+
+    @Test
+    public void testHeldProgressIsSentWhileQuiet() throws Exception {
+        MemoryBroker broker = MemoryBroker.get("progress");
+        try {
+            MemoryConnection consumer = broker.connect();
+            StompFrame subscribe = new StompFrame(SUBSCRIBE);
+            subscribe.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/test"));
+            subscribe.addHeader(ID, consumer.nextId());
+            consumer.request(subscribe);
+
+            Map<String, Object> config = new HashMap<String, Object>();
+            config.put("url", "mem://progress");
+            config.put("queue", "/queue/test");
+            final ProgressWorker progress = new ProgressWorker();
+            progress.setStompConfig(config);
+            // longer than the pause after each send, so the second redraw is held
+            progress.setOutputCompactor(new OutputCompactor(2000, 0));
+            final Map<String, Object> result = new HashMap<String, Object>();
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    result.putAll(progress.perform("download", workitem));
+                }
+            };
+            t.start();
+
+            // the plugin writes nothing more until the held redraw arrives
+            boolean found = false;
+            while (!found) {
+                StompFrame frame = consumer.receive(10, TimeUnit.SECONDS);
+                assertNotNull("held progress not sent", frame);
+                Map<String, Object> message = JSON.std.mapFrom(frame.content().ascii().toString());
+                found = "20%\r".equals(message.get("__output__"));
+            }
+            progress.quiet.countDown();
+            t.join(10000);
+            assertNull(progress.getError());
+        } finally {
+            StompConnectionFactory.getInstance().closeConnections();
+            broker.stop();
+        }
+    }
+
+    @Test
+    public void testMemoize() throws Exception {
+        ResultCache cache = new ResultCache(10, null);
+        worker.setResultCache(cache);
+        MaestroWorkerStub stub = (MaestroWorkerStub) worker;
+
+        fields.put("checksum", "abc");
+        worker.perform("analyze", workitem);
+        assertEquals(1, stub.analyzed);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // same input in a new workitem: restored from the cache
+        before();
+        stub = (MaestroWorkerStub) worker;
+        worker.setResultCache(cache);
+        fields.put("checksum", "abc");
+        fields.put("unrelated", "changed");
+        worker.perform("analyze", workitem);
+        assertEquals(0, stub.analyzed);
+        assertEquals(1, cache.getHits());
+        assertEquals("result of abc", worker.getField("result"));
+        assertEquals("report", ((Map<?, ?>) worker.getArrayField(Map.class, "__links__").get(0)).get("name"));
+        assertNull(worker.getError());
+
+        // different input
+        fields.put("checksum", "def");
+        worker.perform("analyze", workitem);
+        assertEquals(1, stub.analyzed);
+        assertEquals("result of def", worker.getField("result"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testMemoizeRemovedFields() throws Exception {
+        ResultCache cache = new ResultCache(10, null);
+        worker.setResultCache(cache);
+        MaestroWorkerStub stub = (MaestroWorkerStub) worker;
+
+        fields.put("checksum", "abc");
+        fields.put("token", "secret");
+        worker.perform("consume", workitem);
+        assertEquals(1, stub.consumed);
+        assertFalse(fields.containsKey("token"));
+
+        // the cached result removes the field again
+        before();
+        stub = (MaestroWorkerStub) worker;
+        worker.setResultCache(cache);
+        fields.put("checksum", "abc");
+        fields.put("token", "secret");
+        worker.perform("consume", workitem);
+        assertEquals(0, stub.consumed);
+        assertEquals(1, cache.getHits());
+        assertFalse(fields.containsKey("token"));
+        assertEquals("abc", worker.getField("consumed"));
+        assertFalse(fields.containsKey("__removed__"));
+    }
+
+    @Test
+    public void testMemoizeSkipsUnserializableFields() throws Exception {
+        ResultCache cache = new ResultCache(10, null);
+        worker.setResultCache(cache);
+        MaestroWorkerStub stub = (MaestroWorkerStub) worker;
+
+        fields.put("checksum", "abc");
+        fields.put("handle", new Unserializable());
+        worker.perform("analyze", workitem);
+        worker.perform("analyze", workitem);
+
+        // run uncached instead of failing
+        assertNull(worker.getError());
+        assertEquals(2, stub.analyzed);
+        assertEquals("result of abc", worker.getField("result"));
+        assertEquals(0, cache.size());
+    }
+
+    public static class Unserializable {
+        public String getState() {
+            throw new IllegalStateException("not serializable");
+        }
+    }
+
+    class ProgressWorker extends MaestroWorker {
+        final CountDownLatch quiet = new CountDownLatch(1);
+
+        public void download() throws Exception {
+            writeOutput("10%\r");
+            writeOutput("20%\r");
+            if (!quiet.await(10, TimeUnit.SECONDS)) {
+                setError("held progress not sent");
+            }
+        }
+    }
+
     class MaestroWorkerStub extends MaestroWorker {
-        public StringBuilder output = new StringBuilder();
+        public StringBuffer output = new StringBuffer();
+        int analyzed;
+        int consumed;
+
+        @Memoize("checksum")
+        public void analyze() throws Exception {
+            analyzed++;
+            setField("result", "result of " + getField("checksum"));
+            addLink("report", "http://example.com/" + getField("checksum"));
+        }
+
+        @Memoize("checksum")
+        public void consume() throws Exception {
+            consumed++;
+            getFields().remove("token");
+            setField("consumed", getField("checksum"));
+        }
 
         public void test() throws Exception {
             // do nothing
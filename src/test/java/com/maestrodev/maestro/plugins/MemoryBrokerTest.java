@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+
+/**
+ * Unit test for MemoryBroker.
+ */
+public class MemoryBrokerTest {
+
+    private MemoryBroker broker;
+
+    @Before
+    public void before() {
+        broker = MemoryBroker.get("test");
+    }
+
+    @After
+    public void after() {
+        StompConnectionFactory.getInstance().closeConnections();
+        broker.stop();
+    }
+
+    private StompFrame message(String destination, String body) {
+        StompFrame frame = new StompFrame(SEND);
+        frame.addHeader(DESTINATION, StompFrame.encodeHeader(destination));
+        frame.content(new Buffer(body.getBytes()));
+        return frame;
+    }
+
+    private void subscribe(MemoryConnection connection, String destination) throws IOException {
+        StompFrame frame = new StompFrame(SUBSCRIBE);
+        frame.addHeader(DESTINATION, StompFrame.encodeHeader(destination));
+        frame.addHeader(ID, connection.nextId());
+        StompFrame receipt = connection.request(frame);
+        assertEquals(RECEIPT, receipt.action());
+    }
+
+    @Test
+    public void testSendAndSubscribe() throws Exception {
+        MemoryConnection producer = broker.connect();
+        // kept until someone subscribes
+        producer.send(message("/queue/test", "first"));
+        assertEquals(1, broker.getPendingCount("/queue/test"));
+
+        MemoryConnection consumer = broker.connect();
+        subscribe(consumer, "/queue/test");
+        producer.send(message("/queue/test", "second"));
+
+        StompFrame received = consumer.receive();
+        assertEquals(MESSAGE, received.action());
+        assertEquals("/queue/test", received.getHeader(DESTINATION).toString());
+        assertNotNull(received.getHeader(MESSAGE_ID));
+        assertEquals("first", received.content().ascii().toString());
+        assertEquals("second", consumer.receive().content().ascii().toString());
+        assertNull(consumer.receive(10, TimeUnit.MILLISECONDS));
+        assertEquals(2, broker.getEnqueueCount());
+    }
+
+    @Test
+    public void testReceipt() throws Exception {
+        MemoryConnection connection = broker.connect();
+        StompFrame frame = message("/queue/test", "body");
+        frame.addHeader(RECEIPT_REQUESTED, StompFrame.encodeHeader("42"));
+        connection.send(frame);
+
+        StompFrame receipt = connection.receive();
+        assertEquals(RECEIPT, receipt.action());
+        assertEquals("42", receipt.getHeader(RECEIPT_ID).toString());
+    }
+
+    @Test
+    public void testRoundRobinAndRedelivery() throws Exception {
+        MemoryConnection producer = broker.connect();
+        MemoryConnection first = broker.connect();
+        MemoryConnection second = broker.connect();
+        subscribe(first, "/queue/test");
+        subscribe(second, "/queue/test");
+
+        for (int i = 0; i < 4; i++) {
+            producer.send(message("/queue/test", "m" + i));
+        }
+        assertEquals("m0", first.receive().content().ascii().toString());
+        assertEquals("m1", second.receive().content().ascii().toString());
+
+        // what the first consumer didn't receive goes to the second one
+        first.close();
+        assertEquals("m3", second.receive().content().ascii().toString());
+        assertEquals("m2", second.receive().content().ascii().toString());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        broker.setCapacity(2);
+        final MemoryConnection producer = broker.connect();
+        final AtomicInteger sent = new AtomicInteger();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 5; i++) {
+                        producer.send(message("/queue/test", "m" + i));
+                        sent.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // stopped
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        assertEquals(2, sent.get());
+
+        MemoryConnection consumer = broker.connect();
+        subscribe(consumer, "/queue/test");
+        for (int i = 0; i < 5; i++) {
+            assertEquals("m" + i, consumer.receive().content().ascii().toString());
+        }
+        t.join(1000);
+        assertEquals(5, sent.get());
+    }
+
+    @Test
+    public void testDisconnectWhileSendIsBlocked() throws Exception {
+        broker.setCapacity(1);
+        final MemoryConnection producer = broker.connect();
+        producer.send(message("/queue/test", "m0"));
+        final IOException[] failure = new IOException[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    producer.send(message("/queue/test", "m1"));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        assertTrue(t.isAlive());
+
+        broker.disconnectAll();
+        t.join(1000);
+        assertFalse(t.isAlive());
+        assertNotNull(failure[0]);
+        assertEquals(1, broker.getPendingCount("/queue/test"));
+    }
+
+    @Test
+    public void testInjectedFailuresAndLatency() throws Exception {
+        MemoryConnection producer = broker.connect();
+        broker.failNextSends(1);
+        try {
+            producer.send(message("/queue/test", "lost"));
+            fail("send should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        producer.send(message("/queue/test", "kept"));
+        assertEquals(1, broker.getPendingCount("/queue/test"));
+
+        broker.setLatency(50);
+        long begin = System.nanoTime();
+        producer.send(message("/queue/test", "slow"));
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        broker.disconnectAll();
+        assertTrue(producer.isClosed());
+        try {
+            producer.send(message("/queue/test", "closed"));
+            fail("send should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWorkerFailover() throws Exception {
+        MemoryConnection consumer = broker.connect();
+        subscribe(consumer, "/queue/test");
+
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("url", "mem://test");
+        config.put("queue", "/queue/test");
+        Map<String, Object> workitem = new HashMap<String, Object>();
+        MaestroWorker worker = new MaestroWorker();
+        worker.setWorkitem(workitem);
+        worker.setStompConfig(config);
+
+        worker.writeOutput("first");
+        // the kept-alive connection goes away and the next send fails once
+        broker.disconnectAll();
+        consumer = broker.connect();
+        subscribe(consumer, "/queue/test");
+        worker.writeOutput("second");
+
+        Map<String, Object> received = JSON.std.mapFrom(consumer.receive().content().ascii().toString());
+        assertEquals("first", received.get("__output__"));
+        received = JSON.std.mapFrom(consumer.receive().content().ascii().toString());
+        assertEquals("second", received.get("__output__"));
+        assertNull(consumer.receive(10, TimeUnit.MILLISECONDS));
+    }
+}
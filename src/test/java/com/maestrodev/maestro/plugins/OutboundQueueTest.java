@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.fusesource.stomp.client.Constants.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.stomp.codec.StompFrame;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unit test for OutboundQueue.
+ */
+public class OutboundQueueTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueueTest.class);
+
+    /**
+     * A sender that takes a while per frame, like a loaded broker, and
+     * remembers the order frames were delivered in. Sends wait until the
+     * sender is released.
+     */
+    class SlowSender implements OutboundQueue.Sender {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        volatile CountDownLatch released = new CountDownLatch(0);
+        volatile long controlDelivered;
+
+        public void send(StompFrame frame) throws Exception {
+            released.await();
+            Thread.sleep(2);
+            String name = frame.getHeader(DESTINATION).toString();
+            if (name.equals("control")) {
+                controlDelivered = System.nanoTime();
+            }
+            delivered.add(name);
+        }
+    }
+
+    private StompFrame frame(String name) {
+        StompFrame frame = new StompFrame(SEND);
+        frame.addHeader(DESTINATION, StompFrame.encodeHeader(name));
+        return frame;
+    }
+
+    @Test
+    public void testControlSkipsQueuedOutput() throws Exception {
+        SlowSender sender = new SlowSender();
+        sender.released = new CountDownLatch(1);
+        OutboundQueue queue = new OutboundQueue("test", sender, 1000);
+
+        // the sending thread holds at most the first output frame while the
+        // rest is queued
+        for (int i = 0; i < 500; i++) {
+            queue.offer(frame("output" + i), OutboundQueue.Lane.ORDERED);
+        }
+        queue.offer(frame("control"), OutboundQueue.Lane.CONTROL);
+        sender.released.countDown();
+        queue.close();
+
+        assertEquals(501, sender.delivered.size());
+        int control = sender.delivered.indexOf("control");
+        assertTrue("control sent after " + control + " output frames", control <= 1);
+        // the output queued before it follows, in order
+        List<String> output = new ArrayList<String>(sender.delivered);
+        output.remove(control);
+        for (int i = 0; i < 500; i++) {
+            assertEquals("output" + i, output.get(i));
+        }
+    }
+
+    @Test
+    public void testControlLatency() throws Exception {
+        SlowSender sender = new SlowSender();
+        OutboundQueue queue = new OutboundQueue("test", sender, 1000);
+
+        // about a second of queued output, being sent while cancel is called
+        long begin = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            queue.offer(frame("output" + i), OutboundQueue.Lane.ORDERED);
+        }
+        long start = System.nanoTime();
+        queue.offer(frame("control"), OutboundQueue.Lane.CONTROL);
+        queue.close();
+        long drained = System.nanoTime();
+
+        long latency = TimeUnit.NANOSECONDS.toMillis(sender.controlDelivered - start);
+        long backlog = TimeUnit.NANOSECONDS.toMillis(drained - begin);
+        int position = sender.delivered.indexOf("control");
+        logger.info(String.format("Control message delivered %dms after it was queued, as frame"
+                + " %d of 501; the 500 buffered output frames took %dms to send",
+                latency, position + 1, backlog));
+        assertTrue("control delivered after " + latency + "ms, backlog took " + backlog + "ms",
+                latency * 4 < backlog);
+    }
+
+    @Test
+    public void testBarrierFollowsQueuedOutput() throws Exception {
+        SlowSender sender = new SlowSender();
+        sender.released = new CountDownLatch(1);
+        OutboundQueue queue = new OutboundQueue("test", sender, 3);
+
+        // the sending thread holds the first frame and the ordered lane is
+        // full, a barrier frame is still queued without blocking
+        for (int i = 0; i < 4; i++) {
+            queue.offer(frame("output" + i), OutboundQueue.Lane.ORDERED);
+        }
+        queue.offer(frame("waiting"), OutboundQueue.Lane.BARRIER);
+        sender.released.countDown();
+        queue.offer(frame("output4"), OutboundQueue.Lane.ORDERED);
+        queue.close();
+
+        assertEquals(Arrays.asList("output0", "output1", "output2", "output3", "waiting",
+                "output4"), sender.delivered);
+    }
+
+    @Test
+    public void testOfferFailsWhenClosedWhileWaiting() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        final OutboundQueue queue = new OutboundQueue("test", new OutboundQueue.Sender() {
+            public void send(StompFrame frame) throws Exception {
+                released.await();
+                throw new Error("sending thread died");
+            }
+        }, 1);
+        queue.offer(frame("output0"), OutboundQueue.Lane.ORDERED);
+        queue.offer(frame("output1"), OutboundQueue.Lane.ORDERED);
+
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.offer(frame("output2"), OutboundQueue.Lane.ORDERED);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+
+        // the queue closes while the writer waits for room
+        released.countDown();
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertTrue(String.valueOf(failure[0]), failure[0] instanceof IllegalStateException);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testOrderedLaneKeepsOrder() throws Exception {
+        SlowSender sender = new SlowSender();
+        OutboundQueue queue = new OutboundQueue("test", sender, 2);
+
+        queue.offer(frame("output1"), OutboundQueue.Lane.ORDERED);
+        queue.offer(frame("output2"), OutboundQueue.Lane.ORDERED);
+        queue.offer(frame("waiting"), OutboundQueue.Lane.ORDERED);
+        queue.offer(frame("output3"), OutboundQueue.Lane.ORDERED);
+        queue.flush();
+
+        assertEquals(0, queue.size());
+        assertEquals(4, sender.delivered.size());
+        assertEquals("waiting", sender.delivered.get(2));
+        queue.close();
+    }
+}
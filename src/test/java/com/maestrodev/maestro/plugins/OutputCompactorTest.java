@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unit test for OutputCompactor.
+ */
+public class OutputCompactorTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutputCompactorTest.class);
+
+    @Test
+    public void testPlainOutputPassesThrough() throws Exception {
+        OutputCompactor compactor = new OutputCompactor();
+        assertEquals("line 1\n", compactor.process("line 1\n", 0));
+        assertEquals("partial", compactor.process("partial", 1));
+        assertEquals(" line\n", compactor.process(" line\n", 2));
+        assertEquals("", compactor.flush());
+    }
+
+    @Test
+    public void testCarriageReturnRewrites() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        assertEquals("10%\r", compactor.process("10%\r", 0));
+        assertEquals("", compactor.process("20%\r", 100));
+        assertEquals("", compactor.process("30%\r", 200));
+        assertEquals("40%\r", compactor.process("40%\r", 1100));
+        assertEquals("done\n", compactor.process("50%\rdone\n", 1200));
+        // windows line endings are not rewrites
+        assertEquals("a\nb\n", compactor.process("a\r\nb\r\n", 1300));
+    }
+
+    @Test
+    public void testRewriteOfPartialLine() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        assertEquals("10%", compactor.process("10%", 0));
+        assertEquals("", compactor.process("\r", 0));
+        assertEquals("\r20%\r", compactor.process("20%\r", 100));
+        assertEquals("", compactor.process("30%\r", 200));
+    }
+
+    @Test
+    public void testFlushSendsLatestProgress() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        compactor.process("1/3\r", 0);
+        compactor.process("2/3\r3/3", 10);
+        assertEquals("3/3", compactor.flush());
+    }
+
+    @Test
+    public void testFlushStartsOver() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        assertEquals("Waiting\n", compactor.process("Waiting\n", 0));
+        assertEquals("10%\r", compactor.process("10%\r", 10));
+        compactor.flush();
+
+        // the next task's output is not compared with the previous one's
+        assertEquals("Waiting\n", compactor.process("Waiting\n", 20));
+        assertEquals("10%\r", compactor.process("10%\r", 30));
+    }
+
+    @Test
+    public void testIdenticalLinesWithinWindow() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        assertEquals("Waiting\n", compactor.process("Waiting\n", 0));
+        assertEquals("", compactor.process("Waiting\n", 1000));
+        assertEquals("", compactor.process("Waiting\nWaiting\n", 2000));
+        assertEquals("Ready\n", compactor.process("Ready\n", 3000));
+        assertEquals("Ready\n", compactor.process("Ready\n", 9000));
+    }
+
+    @Test
+    public void testPollSendsHeldProgress() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(1000, 5000);
+        assertEquals("1/3\r", compactor.process("1/3\r", 0));
+        assertEquals("", compactor.process("2/3\r", 10));
+        assertEquals("", compactor.poll(500));
+        // the tool went quiet, its latest state goes out without a write
+        assertEquals("2/3\r", compactor.poll(1000));
+        assertEquals("", compactor.poll(3000));
+        assertEquals("3/3\r", compactor.process("3/3\r", 3010));
+        assertEquals("", compactor.poll(5000));
+        assertEquals("done\n", compactor.process("done\n", 5010));
+        assertEquals("", compactor.poll(9000));
+    }
+
+    /**
+     * Replays captured tool output through a compactor with the default
+     * settings and reports how many frames and bytes would be sent with and
+     * without compaction. The logs are a Maven dependency resolution into an
+     * empty local repository and a {@code git clone --progress}; each line or
+     * redraw is replayed as one write, 5ms apart, and the compactor is
+     * polled once per interval as the worker does.
+     */
+    @Test
+    public void testReduction() throws Exception {
+        long[] maven = replay("maven-download.log");
+        // mostly one line per artifact, only the redraws of large jars go
+        assertTrue(maven[2] * 2 < maven[0]);
+        assertTrue(maven[3] * 4 < maven[1] * 3);
+
+        long[] git = replay("git-clone.log");
+        assertTrue(git[2] * 20 < git[0]);
+        assertTrue(git[3] * 10 < git[1]);
+    }
+
+    /**
+     * @return the frames and bytes written, and the frames and bytes sent.
+     */
+    private long[] replay(String log) throws Exception {
+        InputStream in = getClass().getResourceAsStream("/output/" + log);
+        assertNotNull(log, in);
+        String output;
+        try {
+            output = IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        long rawFrames = 0, rawBytes = 0, frames = 0, bytes = 0;
+        OutputCompactor compactor = new OutputCompactor();
+        long now = 0;
+        long nextPoll = compactor.getInterval();
+        int start = 0;
+        while (start < output.length()) {
+            int end = start;
+            while (end < output.length() && output.charAt(end) != '\r' && output.charAt(end) != '\n') {
+                end++;
+            }
+            end = Math.min(end + 1, output.length());
+            String chunk = output.substring(start, end);
+            start = end;
+
+            rawFrames++;
+            rawBytes += chunk.length();
+            String out = compactor.process(chunk, now);
+            if (out.length() > 0) {
+                frames++;
+                bytes += out.length();
+            }
+            now += 5;
+            if (now >= nextPoll) {
+                out = compactor.poll(now);
+                if (out.length() > 0) {
+                    frames++;
+                    bytes += out.length();
+                }
+                nextPoll += compactor.getInterval();
+            }
+        }
+        String rest = compactor.flush();
+        if (rest.length() > 0) {
+            frames++;
+            bytes += rest.length();
+        }
+
+        logger.info(String.format("%s: %d -> %d frames, %d -> %d bytes", log,
+                rawFrames, frames, rawBytes, bytes));
+        return new long[] { rawFrames, rawBytes, frames, bytes };
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for ResultCache.
+ */
+public class ResultCacheTest {
+
+    private File directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = File.createTempFile("result-cache", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void after() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private Map<String, Object> result(String value) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("result", value);
+        return fields;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        ResultCache cache = new ResultCache(2, null);
+        cache.put("a", result("1"));
+        cache.put("b", result("2"));
+        assertNotNull(cache.get("a"));
+        cache.put("c", result("3"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a").get("result"));
+        assertEquals("3", cache.get("c").get("result"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        new ResultCache(10, directory).put("a", result("1"));
+
+        // a new cache, as after an agent restart
+        ResultCache cache = new ResultCache(10, directory);
+        assertEquals("1", cache.get("a").get("result"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testDiskTierIsBounded() throws Exception {
+        ResultCache cache = new ResultCache(2, directory);
+        cache.put("a", result("1"));
+        cache.put("b", result("2"));
+        cache.put("c", result("3"));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void testDiskTierIsPrunedInBatches() throws Exception {
+        ResultCache cache = new ResultCache(20, directory);
+        for (int i = 0; i < 21; i++) {
+            cache.put("k" + i, result(String.valueOf(i)));
+        }
+        // pruned to 18 at once, the next writes don't list the directory
+        assertEquals(18, directory.listFiles().length);
+        cache.put("k21", result("21"));
+        cache.put("k22", result("22"));
+        assertEquals(20, directory.listFiles().length);
+        cache.put("k22", result("rewritten"));
+        assertEquals(20, directory.listFiles().length);
+        cache.put("k23", result("23"));
+        assertEquals(18, directory.listFiles().length);
+    }
+
+    @Test
+    public void testResultsAreCopies() throws Exception {
+        ResultCache cache = new ResultCache(10, null);
+        cache.put("a", result("1"));
+        cache.get("a").put("result", "changed");
+        assertEquals("1", cache.get("a").get("result"));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+
+/**
+ * Unit test for StompConnectionFactory.
+ */
+public class StompConnectionFactoryTest {
+
+    @Test
+    public void testTransportUri() throws Exception {
+        assertEquals(new URI("tcp://broker:61613"), StompConnectionFactory.toTransportUri("stomp://broker"));
+        assertEquals(new URI("tcp://broker:1234"), StompConnectionFactory.toTransportUri("stomp://broker:1234"));
+        assertEquals(new URI("tcp://broker:1234"), StompConnectionFactory.toTransportUri("tcp://broker:1234"));
+    }
+
+    @Test
+    public void testSslTransportUri() throws Exception {
+        assertEquals(new URI("ssl://broker:61614"), StompConnectionFactory.toTransportUri("stomp+ssl://broker:61614"));
+        assertEquals(new URI("ssl://broker:61614"), StompConnectionFactory.toTransportUri("stomp+tls://broker:61614"));
+        assertEquals(new URI("ssl://broker:61614"), StompConnectionFactory.toTransportUri("ssl://broker:61614"));
+        assertEquals(new URI("ssl://broker:61614"), StompConnectionFactory.toTransportUri("tls://broker:61614"));
+    }
+
+    @Test(expected = URISyntaxException.class)
+    public void testMissingHost() throws Exception {
+        StompConnectionFactory.toTransportUri("broker:61613");
+    }
+
+    @Test
+    public void testSslContextIsReused() throws Exception {
+        StompConnectionFactory factory = new StompConnectionFactory();
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        factory.setSslContext(context);
+
+        assertSame(context, factory.getSslContext());
+        assertEquals(100, context.getClientSessionContext().getSessionCacheSize());
+    }
+
+    @Test
+    public void testDefaultSslContextIsNotShared() throws Exception {
+        int defaultCacheSize = SSLContext.getDefault().getClientSessionContext().getSessionCacheSize();
+        SSLContext context = new StompConnectionFactory().getSslContext();
+
+        assertNotSame(SSLContext.getDefault(), context);
+        assertEquals(100, context.getClientSessionContext().getSessionCacheSize());
+        assertEquals(defaultCacheSize, SSLContext.getDefault().getClientSessionContext().getSessionCacheSize());
+    }
+}
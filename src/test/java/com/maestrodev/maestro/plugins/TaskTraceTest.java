@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for TaskTrace.
+ */
+public class TaskTraceTest {
+
+    @Test
+    public void testRingBufferKeepsMostRecentSpans() throws Exception {
+        TaskTrace trace = new TaskTrace(3);
+        for (int i = 0; i < 5; i++) {
+            trace.record("span" + i, System.nanoTime());
+        }
+
+        assertEquals(5, trace.getCount());
+        List<Map<String, Object>> events = trace.getEvents();
+        assertEquals(3, events.size());
+        assertEquals("span2", events.get(0).get("name"));
+        assertEquals("span4", events.get(2).get("name"));
+    }
+
+    @Test
+    public void testToJson() throws Exception {
+        TaskTrace trace = new TaskTrace();
+        trace.record("send", System.nanoTime());
+
+        String json = trace.toJson();
+        assertTrue(json, json.contains("\"traceEvents\":["));
+        assertTrue(json, json.contains("\"name\":\"send\""));
+        assertTrue(json, json.contains("\"ph\":\"X\""));
+    }
+}
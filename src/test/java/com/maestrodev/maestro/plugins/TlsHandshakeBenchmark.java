@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static java.lang.String.format;
+import static org.fusesource.stomp.client.Constants.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.SslContext;
+import org.apache.activemq.broker.TransportConnector;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * Measures the cost of TLS handshakes per message against an in-process
+ * ActiveMQ broker with a {@code stomp+ssl} connector, comparing:
+ * <ul>
+ * <li>a new connection per message with a new SSLContext, so every message
+ * pays for a full handshake, which is what a connection per
+ * {@code writeOutput} used to cost;</li>
+ * <li>a new connection per message with a shared SSLContext, so reconnects
+ * resume the TLS session;</li>
+ * <li>a kept-alive connection from {@link StompConnectionFactory#acquire(String)}.</li>
+ * </ul>
+ * Broker and client run in the same JVM, so the CPU time reported covers
+ * both ends. Generates a throwaway keystore with {@code keytool}.
+ *
+ * <pre>
+ * -Dtls.messages=200 -Dtls.port=61621
+ * </pre>
+ */
+public class TlsHandshakeBenchmark {
+
+    private static final String PASSWORD = "password";
+
+    private final int messages = Integer.getInteger("tls.messages", 200);
+    private final int port = Integer.getInteger("tls.port", 61621);
+
+    private File keystore;
+    private BrokerService broker;
+
+    public static void main(String[] args) throws Exception {
+	new TlsHandshakeBenchmark().run();
+    }
+
+    void run() throws Exception {
+	keystore = createKeystore();
+	startBroker();
+	try {
+	    String uri = "stomp+ssl://localhost:" + port;
+	    // warm up
+	    measure("warm up", uri, Mode.FULL_HANDSHAKE, Math.min(20, messages));
+
+	    measure("connection per message, full handshake", uri, Mode.FULL_HANDSHAKE, messages);
+	    measure("connection per message, resumed session", uri, Mode.RESUMED_SESSION, messages);
+	    measure("kept-alive connection", uri, Mode.KEPT_ALIVE, messages);
+	} finally {
+	    StompConnectionFactory.getInstance().closeConnections();
+	    broker.stop();
+	    broker.waitUntilStopped();
+	    keystore.delete();
+	}
+    }
+
+    enum Mode {
+	FULL_HANDSHAKE, RESUMED_SESSION, KEPT_ALIVE
+    }
+
+    private void measure(String name, String uri, Mode mode, int count)
+	    throws Exception {
+	StompConnectionFactory factory = new StompConnectionFactory();
+	factory.setHeartBeat(0);
+	factory.setSslContext(clientContext());
+
+	long cpuBefore = processCpuTime();
+	long begin = System.nanoTime();
+	for (int i = 0; i < count; i++) {
+	    StompFrame frame = frame(i);
+	    if (mode == Mode.KEPT_ALIVE) {
+		factory.acquire(uri).send(frame);
+	    } else {
+		if (mode == Mode.FULL_HANDSHAKE) {
+		    // a new context has no session to resume
+		    factory.setSslContext(clientContext());
+		}
+		BlockingConnection connection = factory.getConnection(uri);
+		connection.send(frame);
+		connection.close();
+	    }
+	}
+	long elapsed = System.nanoTime() - begin;
+	long cpu = processCpuTime() - cpuBefore;
+	factory.closeConnections();
+
+	System.out.println(format("%-42s %8.3f ms/message, %8.3f ms CPU/message",
+		name, elapsed / 1e6 / count, cpu / 1e6 / count));
+    }
+
+    private StompFrame frame(int i) {
+	StompFrame frame = new StompFrame(SEND);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader("/queue/tls"));
+	frame.content(new Buffer(("{\"__output__\":\"line " + i + "\"}").getBytes()));
+	return frame;
+    }
+
+    private static long processCpuTime() {
+	OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+	if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+	    return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+	}
+	return 0;
+    }
+
+    private File createKeystore() throws Exception {
+	File file = File.createTempFile("maestro-tls", ".jks");
+	file.delete();
+	String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+	Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "broker",
+		"-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+		"-validity", "1", "-keystore", file.getPath(), "-storetype", "JKS",
+		"-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+	if (process.waitFor() != 0) {
+	    throw new IllegalStateException("keytool failed with exit code " + process.exitValue());
+	}
+	return file;
+    }
+
+    private KeyStore loadKeystore() throws Exception {
+	KeyStore store = KeyStore.getInstance("JKS");
+	FileInputStream in = new FileInputStream(keystore);
+	try {
+	    store.load(in, PASSWORD.toCharArray());
+	} finally {
+	    in.close();
+	}
+	return store;
+    }
+
+    private TrustManagerFactory trustManagers() throws Exception {
+	TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+	tmf.init(loadKeystore());
+	return tmf;
+    }
+
+    private SSLContext clientContext() throws Exception {
+	SSLContext context = SSLContext.getInstance("TLS");
+	context.init(null, trustManagers().getTrustManagers(), new SecureRandom());
+	return context;
+    }
+
+    private void startBroker() throws Exception {
+	KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+	kmf.init(loadKeystore(), PASSWORD.toCharArray());
+
+	broker = new BrokerService();
+	broker.setSslContext(new SslContext(kmf.getKeyManagers(),
+		trustManagers().getTrustManagers(), new SecureRandom()));
+	TransportConnector connector = new TransportConnector();
+	connector.setUri(new URI("stomp+ssl://localhost:" + port));
+	broker.addConnector(connector);
+	broker.setPersistent(false);
+	broker.setBrokerName("tls_broker");
+	broker.start();
+	broker.waitUntilStarted();
+    }
+}
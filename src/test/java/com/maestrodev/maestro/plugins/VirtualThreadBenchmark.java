@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static java.lang.String.format;
+import static org.fusesource.stomp.client.Constants.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.codec.StompFrame;
+
+/**
+ * Measures how many concurrent I/O-bound tasks one JVM sustains on platform
+ * threads and on virtual threads. Boots an in-process ActiveMQ broker with a
+ * stomp connector and submits increasing numbers of tasks at once through a
+ * {@link MaestroWorkerPool}, each task blocking like a plugin waiting on an
+ * HTTP call and writing output to the broker. A level is sustained if all its
+ * tasks complete without error within the time limit; the ramp stops at the
+ * first level that isn't.
+ * <p>
+ * Virtual threads need JDK 21 or later; on older JVMs only platform threads
+ * are measured. Start the JVM with a small {@code -Xss} or {@code -Xmx} to
+ * see platform threads run out first. A JVM that ran out of threads is in no
+ * state to measure the other mode, so compare the highest levels by running
+ * each mode in its own JVM with {@code -Dbench.modes}.
+ *
+ * <pre>
+ * -Dbench.levels=100,1000,5000,10000,50000 -Dbench.blockMillis=2000
+ * -Dbench.outputs=1 -Dbench.timeoutSeconds=120 -Dbench.port=61622
+ * -Dbench.modes=platform,virtual
+ * </pre>
+ */
+public class VirtualThreadBenchmark {
+
+    private static final String QUEUE = "/queue/bench";
+
+    private final int[] levels = parseLevels(System.getProperty("bench.levels",
+	    "100,1000,5000,10000,50000"));
+    private final int port = Integer.getInteger("bench.port", 61622);
+    private final long timeoutSeconds = Long.getLong("bench.timeoutSeconds", 120);
+    private final String[] modes = System.getProperty("bench.modes",
+	    "platform,virtual").split(",");
+
+    /**
+     * A worker whose plugin method blocks like one waiting on a remote
+     * service, and writes some output.
+     */
+    public static class IoBoundWorker extends MaestroWorker {
+	private static final long BLOCK_MILLIS = Long.getLong("bench.blockMillis", 2000);
+	private static final int OUTPUTS = Integer.getInteger("bench.outputs", 1);
+
+	public void work() throws InterruptedException {
+	    for (int i = 0; i < OUTPUTS; i++) {
+		Thread.sleep(BLOCK_MILLIS / Math.max(1, OUTPUTS));
+		writeOutput("response " + i + " for " + getField("name") + "\n");
+	    }
+	    setField("result", "done");
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	new VirtualThreadBenchmark().run();
+    }
+
+    private static int[] parseLevels(String levels) {
+	String[] values = levels.split(",");
+	int[] result = new int[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    result[i] = Integer.parseInt(values[i].trim());
+	}
+	return result;
+    }
+
+    void run() throws Exception {
+	BrokerService broker = new BrokerService();
+	TransportConnector connector = new TransportConnector();
+	connector.setUri(new URI("stomp://localhost:" + port));
+	broker.addConnector(connector);
+	broker.setPersistent(false);
+	broker.setBrokerName("bench_broker");
+	broker.start();
+	broker.waitUntilStarted();
+	Thread consumer = startConsumer();
+	try {
+	    System.out.println(format("%-9s %8s %10s %10s %12s %12s", "mode",
+		    "tasks", "seconds", "tasks/s", "peak threads", "heap MB"));
+	    StringBuilder sustained = new StringBuilder();
+	    for (String mode : modes) {
+		mode = mode.trim();
+		boolean virtual = mode.equals("virtual");
+		sustained.append(sustained.length() == 0 ? "sustained: " : ", ")
+			.append(mode).append(' ');
+		if (virtual && !TaskThreads.isVirtualAvailable()) {
+		    sustained.append("not supported by this JVM");
+		} else {
+		    sustained.append(ramp(virtual));
+		}
+	    }
+	    System.out.println(sustained);
+	} finally {
+	    consumer.interrupt();
+	    StompConnectionFactory.getInstance().closeConnections();
+	    broker.stop();
+	    broker.waitUntilStopped();
+	}
+    }
+
+    /**
+     * Starts a consumer that drains the queue, like the server would. Without
+     * it the output of the first levels fills the broker's memory limit, and
+     * producer flow control then blocks every send of the later ones.
+     */
+    private Thread startConsumer() throws Exception {
+	final BlockingConnection connection = new Stomp("localhost", port).connectBlocking();
+	StompFrame frame = new StompFrame(SUBSCRIBE);
+	frame.addHeader(DESTINATION, StompFrame.encodeHeader(QUEUE));
+	frame.addHeader(ID, connection.nextId());
+	connection.request(frame);
+
+	Thread consumer = new Thread("bench-consumer") {
+	    @Override
+	    public void run() {
+		try {
+		    while (!isInterrupted()) {
+			connection.receive();
+		    }
+		} catch (Exception e) {
+		    // stopped
+		} finally {
+		    try {
+			connection.close();
+		    } catch (Exception e) {
+			// ignore
+		    }
+		}
+	    }
+	};
+	consumer.setDaemon(true);
+	consumer.start();
+	return consumer;
+    }
+
+    /**
+     * Runs the levels in order and returns the largest one sustained.
+     */
+    private int ramp(boolean virtual) {
+	int sustained = 0;
+	for (int level : levels) {
+	    if (!measure(virtual, level)) {
+		break;
+	    }
+	    sustained = level;
+	}
+	return sustained;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private boolean measure(boolean virtual, int tasks) {
+	String mode = virtual ? "virtual" : "platform";
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	System.gc();
+	threads.resetPeakThreadCount();
+
+	ExecutorService executor = TaskThreads.newTaskExecutor("bench-" + mode, virtual);
+	MaestroWorkerPool pool = new MaestroWorkerPool(tasks, executor);
+	Map<String, Object> config = new HashMap<String, Object>();
+	config.put("host", "localhost");
+	config.put("port", String.valueOf(port));
+	config.put("queue", QUEUE);
+
+	long begin = System.nanoTime();
+	long peakHeap = 0;
+	int errors = 0;
+	List<Future<Map>> futures = new ArrayList<Future<Map>>(tasks);
+	try {
+	    for (int i = 0; i < tasks; i++) {
+		futures.add(pool.submit(IoBoundWorker.class, "work", workitem(i), config));
+	    }
+	    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+	    for (Future<Map> future : futures) {
+		peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+		Map result = future.get(Math.max(0, deadline - System.nanoTime()),
+			TimeUnit.NANOSECONDS);
+		if (((Map) result.get("fields")).get("__error__") != null) {
+		    errors++;
+		}
+	    }
+	} catch (Throwable e) {
+	    // OutOfMemoryError creating threads, rejected tasks or timeout
+	    System.out.println(format("%-9s %8d failed: %s", mode, tasks, e));
+	    return false;
+	} finally {
+	    pool.shutdown();
+	    for (Future<Map> future : futures) {
+		future.cancel(true);
+	    }
+	}
+	double seconds = (System.nanoTime() - begin) / 1e9;
+	System.out.println(format("%-9s %8d %10.2f %10.1f %12d %12.1f%s", mode, tasks,
+		seconds, tasks / seconds, threads.getPeakThreadCount(),
+		peakHeap / 1048576.0, errors > 0 ? "  " + errors + " errors" : ""));
+	return errors == 0;
+    }
+
+    private Map<String, Object> workitem(int i) {
+	Map<String, Object> fields = new HashMap<String, Object>();
+	fields.put("name", "task" + i);
+	Map<String, Object> workitem = new HashMap<String, Object>();
+	workitem.put("fields", fields);
+	return workitem;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for JfrExecutionEvents. Only built on JDK 11 or later, see the
+ * {@code jfr} profile.
+ */
+public class JfrExecutionEventsTest {
+
+    private MemoryBroker broker;
+
+    public static class RecordedWorker extends MaestroWorker {
+	public void work() throws Exception {
+	    setField("result", "done");
+	}
+    }
+
+    @Before
+    public void before() {
+	broker = MemoryBroker.get("jfr");
+    }
+
+    @After
+    public void after() {
+	StompConnectionFactory.getInstance().closeConnections();
+	broker.stop();
+    }
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+	assertTrue(ExecutionEvents.get() instanceof JfrExecutionEvents);
+
+	Map<String, Object> config = new HashMap<String, Object>();
+	config.put("url", "mem://jfr");
+	config.put("queue", "/queue/test");
+	Map<String, Object> workitem = new HashMap<String, Object>();
+	workitem.put("fields", new HashMap<String, Object>());
+	MaestroWorker worker = new RecordedWorker();
+	worker.setStompConfig(config);
+
+	File file = File.createTempFile("events", ".jfr");
+	file.deleteOnExit();
+	Recording recording = new Recording();
+	try {
+	    for (String name : new String[] { "com.maestrodev.Perform", "com.maestrodev.Connect",
+		    "com.maestrodev.Encode", "com.maestrodev.Send" }) {
+		recording.enable(name).withoutThreshold();
+	    }
+	    recording.start();
+	    worker.perform("work", workitem);
+	    recording.stop();
+	    recording.dump(file.toPath());
+	} finally {
+	    recording.close();
+	}
+
+	List<RecordedEvent> recorded = RecordingFile.readAllEvents(file.toPath());
+	RecordedEvent perform = find(recorded, "com.maestrodev.Perform");
+	assertEquals(RecordedWorker.class.getName(), perform.getString("pluginClass"));
+	assertEquals("work", perform.getString("method"));
+	assertEquals("success", perform.getString("outcome"));
+
+	assertEquals("mem://jfr", find(recorded, "com.maestrodev.Connect").getString("uri"));
+	assertTrue(find(recorded, "com.maestrodev.Encode").getInt("bytes") > 0);
+	RecordedEvent send = find(recorded, "com.maestrodev.Send");
+	assertEquals("/queue/test", send.getString("destination"));
+	assertTrue(send.getInt("bytes") > 0);
+    }
+
+    private RecordedEvent find(List<RecordedEvent> recorded, String name) {
+	for (RecordedEvent event : recorded) {
+	    if (event.getEventType().getName().equals(name)) {
+		return event;
+	    }
+	}
+	fail("no " + name + " event recorded");
+	return null;
+    }
+}
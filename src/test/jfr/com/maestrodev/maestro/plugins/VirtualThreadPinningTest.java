@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs tasks through a {@link MaestroWorkerPool} on virtual threads, writing
+ * compacted and traced output to a {@link MemoryBroker} both directly and
+ * buffered, and checks with the {@code jdk.VirtualThreadPinned} event that
+ * none of them parked while pinned to its carrier by one of our monitors.
+ * Only runs on JDK 21 or later.
+ */
+public class VirtualThreadPinningTest {
+
+    private static final int TASKS = 20;
+
+    private MemoryBroker broker;
+
+    @Before
+    public void before() throws Exception {
+        assumeTrue(TaskThreads.isVirtualAvailable());
+        broker = MemoryBroker.get("virtual");
+    }
+
+    @After
+    public void after() throws Exception {
+        if (broker != null) {
+            StompConnectionFactory.getInstance().closeConnections();
+            broker.stop();
+        }
+    }
+
+    public static class IoBoundWorker extends MaestroWorker {
+        public IoBoundWorker() {
+            setOutputCompactor(new OutputCompactor());
+        }
+
+        public void work() throws Exception {
+            setTrace(new TaskTrace());
+            writeOutput("10%\r");
+            writeOutput("20%\r");
+            Thread.sleep(50);
+            writeOutput("done\n");
+            setWaiting(true);
+            setField("virtual", Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+        }
+    }
+
+    @Test
+    public void testTasksDoNotPinTheirCarrier() throws Exception {
+        Recording recording = new Recording();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+        try {
+            run(false);
+            run(true);
+        } finally {
+            recording.stop();
+        }
+
+        File file = File.createTempFile("pinning", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            List<String> pinned = new ArrayList<String>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                // our own events are recorded too
+                if (!event.getEventType().getName().equals("jdk.VirtualThreadPinned")
+                        || event.getStackTrace() == null) {
+                    continue;
+                }
+                for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                    String type = frame.getMethod().getType().getName();
+                    if (type.startsWith("com.maestrodev.")) {
+                        pinned.add(type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber());
+                        break;
+                    }
+                }
+            }
+            assertTrue("pinned at " + pinned, pinned.isEmpty());
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+
+    private void run(boolean buffered) throws Exception {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("url", "mem://virtual");
+        config.put("queue", "/queue/test");
+        config.put("buffer_output", String.valueOf(buffered));
+
+        ExecutorService executor = TaskThreads.newTaskExecutor("virtual-test", true);
+        MaestroWorkerPool pool = new MaestroWorkerPool(TASKS, executor);
+        try {
+            @SuppressWarnings("rawtypes")
+            List<Future<Map>> futures = new ArrayList<Future<Map>>();
+            for (int i = 0; i < TASKS; i++) {
+                Map<String, Object> workitem = new HashMap<String, Object>();
+                workitem.put("fields", new HashMap<String, Object>());
+                futures.add(pool.submit(IoBoundWorker.class, "work", workitem, config));
+            }
+            for (@SuppressWarnings("rawtypes") Future<Map> future : futures) {
+                Map<?, ?> fields = (Map<?, ?>) future.get().get("fields");
+                assertNull(fields.get("__error__"));
+                assertEquals(Boolean.TRUE, fields.get("virtual"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}